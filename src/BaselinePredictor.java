@@ -0,0 +1,80 @@
+/*
+ * Baseline rating estimate - global mean plus a regularised bias for the track and the user
+ * 		baseline(u, i) = globalMean + userBias[u] + trackBias[i]
+ * Calculated once when the ratings are loaded, with one pass over each orientation of the matrix
+ * 		trackBias = sum(rating - globalMean) / (trackLambda + raters), over the track's ratings
+ * 		userBias = sum(rating - globalMean - trackBias) / (userLambda + ratings), over the user's ratings
+ * The lambdas shrink the biases of tracks/users with few ratings towards 0
+ * Predicting is then a constant-time array lookup, used when the neighbourhood predictions find nothing
+ *
+ * Options: -DtrackLambda (default 25), -DuserLambda (default 10)
+ */
+public class BaselinePredictor
+{
+	static double trackLambda = Double.parseDouble(System.getProperty("trackLambda", "25"));
+	static double userLambda = Double.parseDouble(System.getProperty("userLambda", "10"));
+
+	public double globalMean;
+	public float[] userBias;
+	public float[] trackBias;
+
+	public BaselinePredictor(RatingMatrix ratings){
+		this(ratings, null, -1);
+	}
+
+	/*
+	 * Ratings in testFold of folds are left out (see Folds)
+	 */
+	public BaselinePredictor(RatingMatrix ratings, Folds folds, int testFold){
+		System.out.println("Calculating baseline predictor");
+		userBias = new float[ratings.numUsers()];
+		trackBias = new float[ratings.numTracks()];
+
+		double sum = 0;
+		long count = 0;
+		double[] trackSums = new double[ratings.numTracks()];
+		int[] trackCounts = new int[ratings.numTracks()];
+
+		for(int track = 0; track < ratings.numTracks(); track++){
+			for(int pos = ratings.trackStart(track); pos < ratings.trackEnd(track); pos++){
+				if(!Folds.heldOut(folds, testFold, ratings.rater(pos), track)){
+					trackSums[track] += ratings.trackRating(pos);
+					trackCounts[track]++;
+				}
+			}
+			sum += trackSums[track];
+			count += trackCounts[track];
+		}
+		globalMean = count == 0 ? 0 : sum/count;
+
+		//sum(rating - globalMean) is just the rating sum less globalMean for each rating
+		for(int track = 0; track < ratings.numTracks(); track++){
+			trackBias[track] = (float) ((trackSums[track] - globalMean*trackCounts[track]) / (trackLambda + trackCounts[track]));
+		}
+
+		for(int user = 0; user < ratings.numUsers(); user++){
+			double residuals = 0;
+			int userCount = 0;
+			for(int pos = ratings.userStart(user); pos < ratings.userEnd(user); pos++){
+				int track = ratings.ratedTrack(pos);
+				if(!Folds.heldOut(folds, testFold, user, track)){
+					residuals += ratings.userRating(pos) - globalMean - trackBias[track];
+					userCount++;
+				}
+			}
+			userBias[user] = (float) (residuals / (userLambda + userCount));
+		}
+		System.out.println("Done");
+	}
+
+	/*
+	 * Baseline rating of track by user, by matrix index
+	 * Either index can be -1 for a user or track with no ratings, which then contributes no bias
+	 */
+	public double predict(int user, int track){
+		double prediction = globalMean;
+		if(user >= 0) prediction += userBias[user];
+		if(track >= 0) prediction += trackBias[track];
+		return prediction;
+	}
+}
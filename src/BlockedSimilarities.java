@@ -0,0 +1,314 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Out-of-core version of FusedSimilarities, for catalogues whose ratings don't fit in the heap
+ * Tracks are split into contiguous blocks sized so that two blocks fit in half of memoryBudget
+ * For each block B1, every block B2 is loaded in turn beside it and all (B1, B2) track pairs are compared
+ * 		the pairs of one (B1, B2) step come out sorted by (Item1, Item2), so each step is written to disk as a sorted run
+ * 		the runs of B1 are then merged (an external merge sort, at most mergeFanIn runs at a time) into the results table
+ * Blocks are in track order, so the table is filled in Item1 order and comes out clustered by Item1 for fast lookups
+ * Heap use is bounded by memoryBudget whatever the number of tracks, apart from one {first, last, tracks, ratings} entry per block
+ *
+ * Blocks are copied out of the rating matrix snapshot (-Dsource=matrix, the default) or read from trainingData (-Dsource=database)
+ * 		reading from trainingData first adds a covering index on (trackID, userID, rating), so each block is a range read
+ * Measures needing RatingStatistics (adjusted) are not available, as the statistics are not held in memory
+ * Pairs are pruned by rater count as in CalculateSimilarities (-DminCoRaters)
+ *
+ * Options: -DmemoryBudget (bytes, default 256MB), -Dsource=matrix|database, -Dmeasures (default pearson),
+ * 		-DblockedTable (default itemSimilaritiesBlocked, must not exist yet), -DtempDir (default java.io.tmpdir)
+ */
+public class BlockedSimilarities
+{
+	static long memoryBudget = Long.getLong("memoryBudget", 256L*1024*1024);
+	static String source = System.getProperty("source", "matrix");
+	static String measureNames = System.getProperty("measures", "pearson");
+	static String tableName = System.getProperty("blockedTable", "itemSimilaritiesBlocked");
+	static File tempDir = new File(System.getProperty("tempDir", System.getProperty("java.io.tmpdir")));
+	static int mergeFanIn = 64;
+	static int bufferSize = 64*1024;
+
+	static Connection c;
+	static RatingMatrix ratings;
+	static SimilarityMeasure[] measures;
+	static SimilarityTableWriter table;
+
+	public static void main(String[] args) throws Exception
+	{
+		measures = SimilarityMeasure.parseList(measureNames);
+		for(SimilarityMeasure measure : measures){
+			if(measure.needsStatistics()){
+				throw new IllegalArgumentException(measure.name() + " can't be calculated out of core");
+			}
+		}
+
+		CalculateSimilarities.openConnection(CalculateSimilarities.databaseName);
+		c = CalculateSimilarities.c;
+
+		List<int[]> blocks;
+		if(source.equals("database")){
+			RatingBlock.createIndex(c);
+			blocks = planFromDatabase();
+		} else {
+			ratings = RatingMatrix.load(c, CalculateSimilarities.matrixFile);
+			blocks = planFromMatrix();
+		}
+		System.out.println("Split tracks into " + blocks.size() + " blocks");
+
+		table = new SimilarityTableWriter(c, tableName, measures, "-DblockedTable");
+		blockedSimilarities(blocks);
+		table.close();
+		c.close();
+		CalculateSimilarities.printPruningStatistics();
+		System.out.println("DONE");
+	}
+
+	/*
+	 * Largest block that lets two blocks fit in half the budget - the rest is left for I/O buffers and the JVM
+	 */
+	static long blockBudget()
+	{
+		return memoryBudget/4;
+	}
+
+	/*
+	 * Walk the matrix offsets, closing a block whenever the next track would take it over blockBudget
+	 * A single track bigger than the budget gets a block to itself
+	 * Entries are {first track index, last track index (inclusive), tracks, ratings}
+	 */
+	static List<int[]> planFromMatrix()
+	{
+		List<int[]> blocks = new ArrayList<int[]>();
+		int first = 0;
+		for(int track = 0; track < ratings.numTracks(); track++){
+			int count = ratings.trackEnd(track) - ratings.trackStart(track);
+			int blockRatings = ratings.trackStart(track) - ratings.trackStart(first);
+			if(track > first && RatingBlock.bytes(track - first + 1, blockRatings + count) > blockBudget()){
+				blocks.add(new int[] { first, track - 1, track - first, blockRatings });
+				first = track;
+			}
+		}
+		if(ratings.numTracks() > first){
+			blocks.add(new int[] { first, ratings.numTracks() - 1, ratings.numTracks() - first, ratings.numRatings() - ratings.trackStart(first) });
+		}
+		return blocks;
+	}
+
+	/*
+	 * As planFromMatrix, streaming per-track rating counts from trainingData
+	 * Entries are {first track ID, last track ID (inclusive), tracks, ratings}
+	 */
+	static List<int[]> planFromDatabase() throws Exception
+	{
+		List<int[]> blocks = new ArrayList<int[]>();
+		int[] block = null;
+
+		Statement stat = c.createStatement();
+		ResultSet rs = stat.executeQuery("SELECT trackID, COUNT(*) FROM trainingData GROUP BY trackID ORDER BY trackID");
+		while(rs.next()){
+			int trackID = rs.getInt(1);
+			int count = rs.getInt(2);
+			if(block != null && RatingBlock.bytes(block[2] + 1, (long) block[3] + count) > blockBudget()){
+				blocks.add(block);
+				block = null;
+			}
+			if(block == null){
+				block = new int[] { trackID, trackID, 0, 0 };
+			}
+			block[1] = trackID;
+			block[2]++;
+			block[3] += count;
+		}
+		rs.close();
+		stat.close();
+		if(block != null){
+			blocks.add(block);
+		}
+		return blocks;
+	}
+
+	static RatingBlock loadBlock(int[] block) throws Exception
+	{
+		if(ratings == null){
+			return RatingBlock.fromDatabase(c, block[0], block[1], block[2], block[3]);
+		}
+		return RatingBlock.fromMatrix(ratings, block[0], block[1] + 1);
+	}
+
+	/*
+	 * Compare every block with every block, two in memory at a time, merging each outer block's runs into the table
+	 */
+	static void blockedSimilarities(List<int[]> blocks) throws Exception
+	{
+		for(int b1 = 0; b1 < blocks.size(); b1++){
+			RatingBlock block1 = loadBlock(blocks.get(b1));
+			List<File> runs = new ArrayList<File>();
+
+			for(int b2 = 0; b2 < blocks.size(); b2++){
+				RatingBlock block2 = (b2 == b1) ? block1 : loadBlock(blocks.get(b2));
+				runs.add(writeRun(block1, block2));
+			}
+
+			block1 = null;
+			mergeRuns(runs);
+			System.out.println("Processed block " + (b1 + 1) + "/" + blocks.size());
+		}
+	}
+
+	/*
+	 * Compare every track of block1 with every track of block2, writing kept pairs to a run file
+	 * Records are Item1, Item2 then one double per measure, in (Item1, Item2) order
+	 */
+	static File writeRun(RatingBlock block1, RatingBlock block2) throws Exception
+	{
+		File run = File.createTempFile("similarities", ".run", tempDir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), bufferSize));
+		CoRatingSums sums = new CoRatingSums(measures);
+		double[] values = new double[measures.length];
+		int minCoRaters = CalculateSimilarities.minCoRaters;
+
+		for(int row1 = 0; row1 < block1.numTracks(); row1++){
+			if(block1.raterCount(row1) < minCoRaters){
+				CalculateSimilarities.pairsSkipped += block2.numTracks();
+				continue;
+			}
+			for(int row2 = 0; row2 < block2.numTracks(); row2++){
+				if(block2.raterCount(row2) < minCoRaters){
+					CalculateSimilarities.pairsSkipped++;
+					continue;
+				}
+				CalculateSimilarities.pairsCompared++;
+				if(!sums.compute(block1, row1, block2, row2, null, null, -1, minCoRaters)) continue;
+
+				boolean keep = false;
+				for(int m = 0; m < measures.length; m++){
+					values[m] = measures[m].similarity(sums);
+					keep |= values[m] > 0;
+				}
+				if(keep){
+					out.writeInt(block1.trackIDs[row1]);
+					out.writeInt(block2.trackIDs[row2]);
+					for(double value : values){
+						out.writeDouble(value);
+					}
+				}
+			}
+		}
+		out.close();
+		CalculateSimilarities.earlyExits.add(sums.earlyExits);
+		return run;
+	}
+
+	/*
+	 * Merge sorted runs into the table, first merging them mergeFanIn at a time into bigger runs if there are too many
+	 * Every run is deleted once it has been merged
+	 */
+	static void mergeRuns(List<File> runs) throws Exception
+	{
+		while(runs.size() > mergeFanIn){
+			List<File> merged = new ArrayList<File>();
+			for(int first = 0; first < runs.size(); first += mergeFanIn){
+				List<File> group = runs.subList(first, Math.min(first + mergeFanIn, runs.size()));
+				File run = File.createTempFile("similarities", ".run", tempDir);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), bufferSize));
+				merge(group, out);
+				out.close();
+				merged.add(run);
+			}
+			runs = merged;
+		}
+		merge(runs, null);
+	}
+
+	/*
+	 * k-way merge of runs in (Item1, Item2) order, to out or (if out is null) into the table
+	 */
+	static void merge(List<File> runs, DataOutputStream out) throws Exception
+	{
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		for(File run : runs){
+			RunReader reader = new RunReader(run);
+			if(reader.next()){
+				queue.add(reader);
+			} else {
+				reader.close();
+			}
+		}
+
+		while(!queue.isEmpty()){
+			RunReader reader = queue.poll();
+			if(out != null){
+				out.writeInt(reader.item1);
+				out.writeInt(reader.item2);
+				for(double value : reader.values){
+					out.writeDouble(value);
+				}
+			} else {
+				table.save(reader.item1, reader.item2, reader.values);
+			}
+			if(reader.next()){
+				queue.add(reader);
+			} else {
+				reader.close();
+			}
+		}
+	}
+
+	/*
+	 * Reads the records of one run in order, holding the current record
+	 */
+	static class RunReader implements Comparable<RunReader>
+	{
+		final File file;
+		final DataInputStream in;
+		int item1, item2;
+		final double[] values = new double[measures.length];
+
+		RunReader(File file) throws Exception
+		{
+			this.file = file;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+		}
+
+		/*
+		 * Read the next record, returns false at the end of the run
+		 */
+		boolean next() throws Exception
+		{
+			try {
+				item1 = in.readInt();
+			} catch(EOFException e){
+				return false;
+			}
+			item2 = in.readInt();
+			for(int m = 0; m < values.length; m++){
+				values[m] = in.readDouble();
+			}
+			return true;
+		}
+
+		void close() throws Exception
+		{
+			in.close();
+			file.delete();
+		}
+
+		public int compareTo(RunReader other)
+		{
+			if(item1 != other.item1) return Integer.compare(item1, other.item1);
+			return Integer.compare(item2, other.item2);
+		}
+	}
+}
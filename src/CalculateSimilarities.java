@@ -1,39 +1,56 @@
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.Statement;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * Calculate all similarities between a set of vectors in a dataset
  * This class is designed to deal with one vector for each item - containing user ratings for that track
  * Connection c - communicates with SQLite database
+ * RatingMatrix ratings - memory-mapped training data, built from the database on first run
  */
 
 public class CalculateSimilarities 
 {
 	static Connection c = null;
 	
-	public static HashMap<Integer, HashMap<Integer, Integer>> allRatings_byTrack;
+	public static RatingMatrix ratings;
 	public static String databaseName = "rating_data.db";
+	//set with -DratingMatrix=file, delete the file to rebuild it from trainingData
+	public static String matrixFile = System.getProperty("ratingMatrix", "rating_matrix.bin");
+	
+	//measure used to compare tracks - any SimilarityMeasure name, e.g. -DsimilarityMeasure=adjusted
+	//statistics are only calculated for measures that need them
+	public static SimilarityMeasure measure = SimilarityMeasure.forName(System.getProperty("similarityMeasure", "pearson"));
+	public static RatingStatistics statistics;
+	
+	//pairs of tracks with fewer users in common than this are not kept (given a similarity of 0)
+	//set with -DminCoRaters=n, the default of 1 keeps every pair that has any co-rater
+	public static int minCoRaters = Integer.getInteger("minCoRaters", 1);
+	
+	//work avoided by pruning - pairs never compared because of their rater counts,
+	//	and comparisons the kernels stopped early because too few users were left to reach minCoRaters
+	public static long pairsCompared = 0;
+	public static long pairsSkipped = 0;
+	public static LongAdder earlyExits = new LongAdder();
 	
 	public static void main(String[] args)
 	{
 		openConnection(databaseName);
-		allRatings_byTrack = getAllRatings_byTrack();
+		ratings = RatingMatrix.load(c, matrixFile);
+		if(measure.needsStatistics()){
+			statistics = new RatingStatistics(ratings);
+		}
 		
 		itemSimilarities();
 	}
 	
 	/*
-	 * Loops over every track and compare it to every other track using 'sim_cosine'
+	 * Loops over every track and compare it to every other track using the selected similarity measure
 	 * If similarity shows positive correlation (over 0), the value is saved with the two track IDs
+	 * Pairs that can't reach minCoRaters are pruned by rater count, see firstCandidate
 	 * The database is closed and re-opened every time 250/~30,000 tracks have been processed to reduce memory leak
 	 * 		It is vital to commit before doing this so no values are lost
 	 * 
@@ -41,19 +58,22 @@ public class CalculateSimilarities
 	public static void itemSimilarities()
 	{
 		long counter = 1;
+		int[] candidates = tracksByRaterCount();
 
-		for( Entry<Integer, HashMap<Integer, Integer>> track1 : allRatings_byTrack.entrySet())
+		for(int track1 = 0; track1 < ratings.numTracks(); track1++)
 		{
-			for ( Entry<Integer, HashMap<Integer, Integer>> track2 : allRatings_byTrack.entrySet())
+			int track1ID = ratings.trackID(track1);
+			for(int i = firstCandidate(track1, candidates); i < candidates.length; i++)
 			{
-				double similarity = sim_cosine(track1.getValue(), track2.getValue());
+				int track2 = candidates[i];
+				double similarity = similarity(track1, track2);
 				
 				if(similarity>0){
-					saveSimilarity(track1.getKey(), track2.getKey(), similarity, "itemSimilaritiesTester", counter);
+					saveSimilarity(track1ID, ratings.trackID(track2), similarity, "itemSimilaritiesTester", counter);
 					counter++;
 				}
 			}
-			if(track1.getKey() % 250 == 0){
+			if(track1ID % 250 == 0){
 				try{
 					c.commit();
 					System.out.println("Closing database");
@@ -63,8 +83,89 @@ public class CalculateSimilarities
 				} catch(Exception e){ e.getMessage(); }
 				    
 			}
-			System.out.println("Processed " + track1.getKey());
+			System.out.println("Processed " + track1ID);
 		}
+		try{ c.commit(); } catch(Exception e){ System.err.println( e.getClass().getName() + ": " + e.getMessage() ); }
+		printPruningStatistics();
+	}
+	
+	/*
+	 * Matrix indexes of all tracks, sorted by how many users rated them (fewest first)
+	 * Sorts (count, index) pairs packed into longs to avoid boxing
+	 */
+	public static int[] tracksByRaterCount()
+	{
+		long[] keys = new long[ratings.numTracks()];
+		for(int track = 0; track < keys.length; track++){
+			keys[track] = ((long) raterCount(track) << 32) | track;
+		}
+		Arrays.sort(keys);
+		
+		int[] tracks = new int[keys.length];
+		for(int i = 0; i < keys.length; i++){
+			tracks[i] = (int) keys[i];
+		}
+		return tracks;
+	}
+	
+	/*
+	 * Position in candidates (from tracksByRaterCount) of the first track worth comparing with track1
+	 * Two tracks can't have more users in common than the smaller of their rater counts, so
+	 * 		if track1 has fewer than minCoRaters raters none are - returns candidates.length
+	 * 		otherwise the tracks with fewer than minCoRaters raters are a prefix of candidates, found by binary search
+	 * The pairs passed over are added to pairsSkipped and the rest to pairsCompared
+	 */
+	public static int firstCandidate(int track1, int[] candidates)
+	{
+		int first = candidates.length;
+		if(raterCount(track1) >= minCoRaters){
+			int low = 0, high = candidates.length;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(raterCount(candidates[mid]) < minCoRaters) low = mid + 1;
+				else high = mid;
+			}
+			first = low;
+		}
+		pairsSkipped += first;
+		pairsCompared += candidates.length - first;
+		return first;
+	}
+	
+	static int raterCount(int track)
+	{
+		return ratings.trackEnd(track) - ratings.trackStart(track);
+	}
+	
+	public static void printPruningStatistics()
+	{
+		long total = pairsCompared + pairsSkipped;
+		System.out.println("Pairs compared: " + pairsCompared + ", skipped by rater count: " + pairsSkipped
+				+ " (" + (total == 0 ? 0 : 100*pairsSkipped/total) + "%), stopped early: " + earlyExits.sum());
+	}
+	
+	/*
+	 * Similarity between two tracks (by matrix index) according to measure
+	 * Measures that need statistics require them to have been calculated from ratings
+	 */
+	public static double similarity(int track1, int track2)
+	{
+		return similarity(ratings, statistics, track1, track2, null, -1);
+	}
+	
+	/*
+	 * As above, ignoring the ratings in testFold of folds (see Folds)
+	 * statistics must have been calculated with the same folds and testFold
+	 * Returns 0 for tracks with fewer than minCoRaters users in common
+	 */
+	public static double similarity(RatingMatrix ratings, RatingStatistics statistics, int track1, int track2, Folds folds, int testFold)
+	{
+		CoRatingSums sums = new CoRatingSums(measure);
+		if(!sums.compute(ratings, track1, ratings, track2, statistics, folds, testFold, minCoRaters)){
+			earlyExits.add(sums.earlyExits);
+			return 0;
+		}
+		return measure.similarity(sums);
 	}
 	
 	/*
@@ -94,58 +195,6 @@ public class CalculateSimilarities
 	          System.exit(0);
 	        }
 	}
-	
-	/*
-	 * Uses retainAll method to return intersection of two sets
-	 * In this case, all users who rated track 1 and track 2
-	 */
-	public static Set<Integer> getMutualEntries(HashMap<Integer, Integer> set1, HashMap<Integer, Integer> set2){
-		Set<Integer> mutuals = new HashSet<Integer>(set1.keySet());
-		mutuals.retainAll(set2.keySet());
-		
-		return mutuals;
-	}
-	
-	
-	/*
-	 * Calculates the similarity between two vectors using pearson similarity
-	 * Adapted from 'Programming Collective Intelligence (Toby Segaran)' p13
-	 */
-	public static double sim_cosine(HashMap<Integer, Integer> set1Ratings, HashMap<Integer, Integer> set2Ratings){
-		Set<Integer> mutualEntries = getMutualEntries(set1Ratings, set2Ratings);
-		
-		if(mutualEntries.isEmpty()){
-			//System.out.println("NO MUTUAL TRACKS");
-			return 0;
-		}
-		
-		double ratingE1, ratingE2;
-		
-		double sum1 = 0, sum2 = 0;
-		double sum1sq = 0, sum2sq = 0, sum12 = 0;
-		double mutualCount = mutualEntries.size();
-		
-		//add up all preferences for each entry, their squares, and the product of the two tracks
-		for(int entryID : mutualEntries){	
-			ratingE1 = set1Ratings.get(entryID);
-			ratingE2 = set2Ratings.get(entryID);
-			
-			sum1 += ratingE1;
-			sum2 += ratingE2;
-			
-			sum1sq += Math.pow(ratingE1, 2);
-			sum2sq += Math.pow(ratingE2, 2);
-			
-			sum12 += ratingE1 * ratingE2;
-		}
-		
-		double numerator = sum12-(sum1*sum2/mutualCount);
-		double denominator = Math.sqrt((sum1sq - Math.pow(sum1, 2)/mutualCount) * (sum2sq - Math.pow(sum2, 2)/mutualCount));
-		mutualEntries.clear();
-		
-		if (denominator == 0) return 0;
-		return numerator/denominator;
-	}
 
 	/*
 	 * Open connection to existing database - c
@@ -196,44 +245,4 @@ public class CalculateSimilarities
 				e.printStackTrace();
 			}
 		}
-
-	 
-	 /*
-	  * Read all training data from database and store it in a nested HashMap structure, indexed by track
-	  */
-	 public static HashMap<Integer, HashMap<Integer, Integer>> getAllRatings_byTrack()
-	 {
-		 HashMap<Integer, HashMap<Integer, Integer>> allRatings_byTrack = new HashMap<Integer, HashMap<Integer, Integer>>();
-		 
-		 try {
-				System.out.println("Loading ratings into track-centric hashmap");
-				Statement stat = c.createStatement();
-				ResultSet rs = stat.executeQuery("SELECT * from trainingData");
-				
-				while(rs.next()){
-					int userID = rs.getInt("userID");
-					int trackID = rs.getInt("trackID");
-					int rating = rs.getInt("rating");
-					
-					if(allRatings_byTrack.containsKey(trackID)){
-						HashMap<Integer, Integer> userRatings = allRatings_byTrack.get(trackID);
-						userRatings.put(userID, rating);
-						allRatings_byTrack.put(trackID, userRatings);
-					} else{
-						HashMap<Integer, Integer> userRatings = new HashMap<Integer, Integer>();
-						userRatings.put(userID, rating);
-						allRatings_byTrack.put(trackID, userRatings);
-					}
-				}
-				rs.close();
-				stat.close();
-				System.out.println("Done");
-				
-		 }	catch(Exception e){
-             System.err.println( e.getClass().getName() + ": " + e.getMessage() );
-			 System.exit(0);
-		 }
-		 
-		 return allRatings_byTrack;
-	 }
-}
+}
\ No newline at end of file
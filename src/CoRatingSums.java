@@ -0,0 +1,116 @@
+/*
+ * Everything the similarity measures need to know about a pair of tracks, gathered in one walk over their co-raters
+ * The one track-pair kernel - CalculateSimilarities, CrossValidation, FusedSimilarities and BlockedSimilarities all compare tracks through it,
+ * 	and any set of SimilarityMeasures can be calculated for a pair while only intersecting the two rows once
+ * One object is reused for every pair - compute() resets it
+ * Only the fields the measures it was created for need are filled in
+ * 	mutualCount - number of users who rated both tracks, count1/count2 - number of users who rated each track
+ * 	sum1, sum2, sum1sq, sum2sq, sum12 - sums of the co-raters' ratings, their squares, and the product of the two tracks' ratings
+ * 	centredDot - dot product of the co-raters' ratings after centring each by that user's mean
+ * 	norm1, norm2 - centred norms of the two tracks from RatingStatistics
+ * 	earlyExits - number of comparisons this object has stopped early, for the caller to add to its own count
+ */
+public class CoRatingSums
+{
+	public int mutualCount, count1, count2;
+	public double sum1, sum2, sum1sq, sum2sq, sum12;
+	public double centredDot, norm1, norm2;
+	public long earlyExits;
+
+	//which sums compute() accumulates - only those the measures it was created for use
+	private final boolean ratingSums, centred, counts;
+
+	/*
+	 * Sums for calculating the given measures - the others are left at 0
+	 * 	so an adjusted cosine pair only costs the centred dot product, and Pearson never pays for it
+	 */
+	public CoRatingSums(SimilarityMeasure... measures)
+	{
+		boolean ratingSums = false, centred = false, counts = false;
+		for(SimilarityMeasure measure : measures){
+			ratingSums |= measure.needsRatingSums();
+			centred |= measure.needsStatistics();
+			counts |= measure.needsCounts();
+		}
+		this.ratingSums = ratingSums;
+		this.centred = centred;
+		this.counts = counts;
+	}
+
+	/*
+	 * Walk row1 of rows1 and row2 of rows2 (both sorted by rater) once, accumulating the sums the measures need
+	 * rows1 and rows2 can be the same RatingMatrix, or two RatingBlocks
+	 * statistics are only read for measures that need them - the rows must then be RatingMatrix track indexes,
+	 * 	and statistics calculated with the same folds and testFold
+	 * Ratings in testFold of folds are skipped (see Folds), folds is null to use every rating
+	 * Returns false, with the sums incomplete, if the tracks have fewer than minCoRaters users in common -
+	 * 	stopping as soon as the rest of the shorter row couldn't make up the difference
+	 * 	or straight away if only centred measures are wanted and either track has a centred norm of 0 (every measure would be 0)
+	 */
+	public boolean compute(TrackRows rows1, int row1, TrackRows rows2, int row2, RatingStatistics statistics, Folds folds, int testFold, int minCoRaters)
+	{
+		mutualCount = 0;
+		sum1 = sum2 = sum1sq = sum2sq = sum12 = centredDot = 0;
+		norm1 = centred ? statistics.trackNorms[row1] : 0;
+		norm2 = centred ? statistics.trackNorms[row2] : 0;
+		if(centred && !ratingSums && !counts && norm1 * norm2 == 0) return false;
+
+		int i = rows1.trackStart(row1), iEnd = rows1.trackEnd(row1);
+		int j = rows2.trackStart(row2), jEnd = rows2.trackEnd(row2);
+
+		while(i < iEnd && j < jEnd){
+			if(mutualCount + Math.min(iEnd - i, jEnd - j) < minCoRaters){
+				earlyExits++;
+				return false;
+			}
+			int user1 = rows1.rater(i), user2 = rows2.rater(j);
+			if(user1 < user2){
+				i++;
+			} else if(user1 > user2){
+				j++;
+			} else if(Folds.heldOut(folds, testFold, user1, row1) || Folds.heldOut(folds, testFold, user1, row2)){
+				i++;
+				j++;
+			} else {
+				double rating1 = rows1.trackRating(i);
+				double rating2 = rows2.trackRating(j);
+
+				if(ratingSums){
+					sum1 += rating1;
+					sum2 += rating2;
+					sum1sq += rating1 * rating1;
+					sum2sq += rating2 * rating2;
+					sum12 += rating1 * rating2;
+				}
+				if(centred){
+					double mean = statistics.userMeans[user1];
+					centredDot += (rating1 - mean) * (rating2 - mean);
+				}
+				mutualCount++;
+				i++;
+				j++;
+			}
+		}
+		if(mutualCount == 0 || mutualCount < minCoRaters) return false;
+
+		if(counts){
+			count1 = raterCount(rows1, row1, folds, testFold);
+			count2 = raterCount(rows2, row2, folds, testFold);
+		}
+		return true;
+	}
+
+	/*
+	 * Number of ratings in row outside testFold
+	 */
+	private static int raterCount(TrackRows rows, int row, Folds folds, int testFold)
+	{
+		if(folds == null) return rows.trackEnd(row) - rows.trackStart(row);
+
+		int count = 0;
+		for(int pos = rows.trackStart(row); pos < rows.trackEnd(row); pos++){
+			if(!Folds.heldOut(folds, testFold, rows.rater(pos), row)) count++;
+		}
+		return count;
+	}
+}
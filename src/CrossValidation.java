@@ -0,0 +1,241 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * k-fold cross-validation of the item-based predictor, run in a single job
+ * Every rating in the matrix is assigned to one of k folds (see Folds). For each fold the model is trained on the other folds
+ * 	and every rating in the fold is predicted the same way PredictRatings would, then MAE/RMSE are reported per fold
+ * 	along with their mean and standard deviation across folds
+ * Unlike Evaluate's rowID % 100 holdout, held-out ratings are genuinely left out of the similarities used to predict them
+ *
+ * The matrix is shared read-only by all threads, nothing is copied per fold
+ * Work is split into one task per (fold, block of tracks), so all cores are busy whatever k is
+ * 		item similarities for a track are calculated on demand and cached while that track's ratings are predicted
+ *
+ * Options: -Dfolds (default 5), -Dthreads (default: all cores), -Dseed (default 1)
+ * 		-DsimilarityMeasure and -DminCoRaters for the track similarities (see CalculateSimilarities)
+ * 		and the prediction options of PredictRatings - -Dfallback, -DuserSimilarity, -Dresiduals, -DratingMatrix
+ */
+public class CrossValidation
+{
+	static Connection c;
+	static RatingMatrix ratings;
+	static Folds folds;
+	static RatingStatistics[] foldStatistics;
+	static BaselinePredictor[] foldBaselines;
+
+	public static String databaseName = "rating_data.db";
+	static int k = Integer.getInteger("folds", 5);
+	static int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+	static long seed = Long.getLong("seed", 1);
+	static int tracksPerTask = 256;
+
+	public static void main(String[] args) throws Exception
+	{
+		openConnection(databaseName);
+		ratings = RatingMatrix.load(c, CalculateSimilarities.matrixFile);
+		c.close();
+
+		folds = new Folds(k, seed);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			calculateFoldModels(pool);
+			double[][] errors = evaluateFolds(pool);
+			printResults(errors);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * Baseline predictor and, when the track measure or the user fallback needs them, statistics from each fold's training ratings
+	 * 	- one task per fold and model
+	 * Otherwise foldStatistics is left full of nulls
+	 */
+	static void calculateFoldModels(ExecutorService pool) throws Exception
+	{
+		foldStatistics = new RatingStatistics[k];
+		foldBaselines = new BaselinePredictor[k];
+		boolean needStatistics = CalculateSimilarities.measure.needsStatistics()
+				|| (PredictRatings.fallback.equals("user") && PredictRatings.userSimilarity.equals("centred"));
+
+		List<Future<RatingStatistics>> statistics = new ArrayList<Future<RatingStatistics>>();
+		List<Future<BaselinePredictor>> baselines = new ArrayList<Future<BaselinePredictor>>();
+		for(int fold = 0; fold < k; fold++){
+			final int testFold = fold;
+			baselines.add(pool.submit(new Callable<BaselinePredictor>() {
+				public BaselinePredictor call() {
+					return new BaselinePredictor(ratings, folds, testFold);
+				}
+			}));
+			if(needStatistics){
+				statistics.add(pool.submit(new Callable<RatingStatistics>() {
+					public RatingStatistics call() {
+						return new RatingStatistics(ratings, folds, testFold);
+					}
+				}));
+			}
+		}
+		for(int fold = 0; fold < k; fold++){
+			foldBaselines[fold] = baselines.get(fold).get();
+			if(needStatistics){
+				foldStatistics[fold] = statistics.get(fold).get();
+			}
+		}
+	}
+
+	/*
+	 * Predict every rating in its own fold
+	 * Returns [fold][absolute error sum, squared error sum, count]
+	 */
+	static double[][] evaluateFolds(ExecutorService pool) throws Exception
+	{
+		List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+		List<Integer> resultFolds = new ArrayList<Integer>();
+
+		for(int fold = 0; fold < k; fold++){
+			for(int first = 0; first < ratings.numTracks(); first += tracksPerTask){
+				final int testFold = fold;
+				final int firstTrack = first;
+				final int lastTrack = Math.min(first + tracksPerTask, ratings.numTracks());
+				results.add(pool.submit(new Callable<double[]>() {
+					public double[] call() {
+						return evaluateTracks(testFold, firstTrack, lastTrack);
+					}
+				}));
+				resultFolds.add(fold);
+			}
+		}
+
+		double[][] errors = new double[k][3];
+		for(int i = 0; i < results.size(); i++){
+			double[] taskErrors = results.get(i).get();
+			double[] foldErrors = errors[resultFolds.get(i)];
+			for(int j = 0; j < 3; j++){
+				foldErrors[j] += taskErrors[j];
+			}
+		}
+		return errors;
+	}
+
+	/*
+	 * Predict the ratings in testFold for tracks firstTrack to lastTrack-1
+	 * Returns [absolute error sum, squared error sum, count]
+	 */
+	static double[] evaluateTracks(int testFold, int firstTrack, int lastTrack)
+	{
+		double[] errors = new double[3];
+
+		for(int track = firstTrack; track < lastTrack; track++){
+			HashMap<Integer, Double> trackSimilarities = new HashMap<Integer, Double>();
+
+			for(int pos = ratings.trackStart(track); pos < ratings.trackEnd(track); pos++){
+				int user = ratings.rater(pos);
+				if(folds.fold(user, track) != testFold) continue;
+
+				double diff = predict(user, track, testFold, trackSimilarities) - ratings.trackRating(pos);
+				errors[0] += Math.abs(diff);
+				errors[1] += diff * diff;
+				errors[2]++;
+			}
+		}
+		return errors;
+	}
+
+	/*
+	 * Same prediction as PredictRatings, using only ratings outside testFold
+	 * 		weighted average of the user's ratings of other tracks, weighted by their positive similarity to this track
+	 * 			relative to the baseline when PredictRatings.useResiduals is set
+	 * 		PredictRatings.fallbackPrediction when none of those tracks are similar
+	 * trackSimilarities caches the similarity of track to other tracks (by matrix index)
+	 */
+	static double predict(int user, int track, int testFold, HashMap<Integer, Double> trackSimilarities)
+	{
+		BaselinePredictor baseline = foldBaselines[testFold];
+		double similaritySum = 0;
+		double simTrackSum = 0;
+
+		for(int pos = ratings.userStart(user); pos < ratings.userEnd(user); pos++){
+			int otherTrack = ratings.ratedTrack(pos);
+			if(otherTrack == track || folds.fold(user, otherTrack) == testFold) continue;
+
+			Double sim = trackSimilarities.get(otherTrack);
+			if(sim == null){
+				sim = CalculateSimilarities.similarity(ratings, foldStatistics[testFold], track, otherTrack, folds, testFold);
+				trackSimilarities.put(otherTrack, sim);
+			}
+			if(sim > 0){
+				double rating = ratings.userRating(pos);
+				if(PredictRatings.useResiduals){
+					rating -= baseline.predict(user, otherTrack);
+				}
+				similaritySum += sim;
+				simTrackSum += (sim*rating);
+			}
+		}
+
+		if(similaritySum == 0){
+			return PredictRatings.fallbackPrediction(ratings, foldStatistics[testFold], baseline, user, track, folds, testFold);
+		}
+		if(PredictRatings.useResiduals){
+			return baseline.predict(user, track) + simTrackSum/similaritySum;
+		}
+		return simTrackSum/similaritySum;
+	}
+
+	/*
+	 * Print MAE and RMSE of each fold, then the mean and standard deviation of both across folds
+	 */
+	static void printResults(double[][] errors)
+	{
+		double[] maes = new double[k];
+		double[] rmses = new double[k];
+
+		for(int fold = 0; fold < k; fold++){
+			double count = errors[fold][2];
+			maes[fold] = count == 0 ? 0 : errors[fold][0]/count;
+			rmses[fold] = count == 0 ? 0 : Math.sqrt(errors[fold][1]/count);
+			System.out.println("Fold " + fold + ": " + (long) count + " ratings, MAE " + maes[fold] + ", RMSE " + rmses[fold]);
+		}
+		System.out.println("MAE: " + mean(maes) + " +/- " + standardDeviation(maes));
+		System.out.println("RMSE: " + mean(rmses) + " +/- " + standardDeviation(rmses));
+	}
+
+	static double mean(double[] values)
+	{
+		double sum = 0;
+		for(double v : values) sum += v;
+		return sum/values.length;
+	}
+
+	static double standardDeviation(double[] values)
+	{
+		double mean = mean(values);
+		double squares = 0;
+		for(double v : values) squares += (v - mean) * (v - mean);
+		return Math.sqrt(squares/(values.length - 1));
+	}
+
+	/*
+	 * Open connection to existing database - c
+	 * Only needed to build the rating matrix on first run
+	 */
+	public static void openConnection(String databaseName) {
+		try {
+			Class.forName("org.sqlite.JDBC");
+			c = DriverManager.getConnection("jdbc:sqlite:" + databaseName);
+			c.setAutoCommit(false);
+			System.out.println("Opened database successfully");
+		} catch ( Exception e ) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		}
+	}
+}
@@ -4,14 +4,8 @@ import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import java.util.Map.Entry;
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.IOException;
 
 /*
  * Class used to evaluate performance of the system
@@ -28,10 +22,12 @@ public class Evaluate
 	static ArrayList<double[]> predictedTestingRatings = new ArrayList<double[]>(); //
 	static ArrayList<int[]> realTestingRates = new ArrayList<int[]>();
 	
-	private static HashMap<Integer, HashMap<Integer, Integer>> allRatings_byTrack;
+	private static RatingMatrix ratings;
 	private static HashMap<Integer, Double> averageTrackRatings;
 	
 	static String inputFileName = "predictTrainTest.csv";
+	//set with -DratingMatrix=file, delete the file to rebuild it from trainingData
+	static String matrixFile = System.getProperty("ratingMatrix", "rating_matrix.bin");
 	
 	public static void main(String[] args) throws Exception{
 		init();		
@@ -44,7 +40,7 @@ public class Evaluate
 		predictedTestingRatings = readPredRates(inputFileName);
 		realTestingRates  = getTrainingTestData();
 		
-		allRatings_byTrack = getAllRatings_byTrack();
+		ratings = RatingMatrix.load(c, matrixFile);
 
 		averageTrackRatings = getAllAverageTrackRatings();
 	}
@@ -145,14 +141,14 @@ public class Evaluate
 		System.out.println("Calculating Average Track Ratings");
 		HashMap<Integer, Double> averageRatings = new HashMap<Integer, Double>();
 		
-		for(Integer e : allRatings_byTrack.keySet()) {
-			int sum = 0;
-			List<Integer> allRatings = new ArrayList<Integer>(allRatings_byTrack.get(e).values());
-			for(int i : allRatings){
-				sum+=i;
+		for(int track = 0; track < ratings.numTracks(); track++) {
+			long sum = 0;
+			int start = ratings.trackStart(track), end = ratings.trackEnd(track);
+			for(int pos = start; pos < end; pos++){
+				sum+=ratings.trackRating(pos);
 			}
-			double mean = sum/allRatings.size();
-			averageRatings.put(e, mean);
+			double mean = (double) sum/(end - start);
+			averageRatings.put(ratings.trackID(track), mean);
 		}
 		System.out.println("Done");
 		return averageRatings;
@@ -228,40 +224,4 @@ public class Evaluate
 		 }
 		return tmpTrainTest;
 	}
-	
-	private static HashMap<Integer, HashMap<Integer, Integer>> getAllRatings_byTrack() {
-		
-		HashMap<Integer, HashMap<Integer, Integer>> allRatings_byTrack = new HashMap<Integer, HashMap<Integer, Integer>>();
-		 
-		 try {
-				System.out.println("Loading ratings into track-centric map");
-				Statement stat = c.createStatement();
-				ResultSet rs = stat.executeQuery("SELECT * from trainingData");
-				
-				while(rs.next()){
-					int userID = rs.getInt("userID");
-					int trackID = rs.getInt("trackID");
-					int rating = rs.getInt("rating");
-					
-					if(allRatings_byTrack.containsKey(trackID)){
-						HashMap<Integer, Integer> userRatings = allRatings_byTrack.get(trackID);
-						userRatings.put(userID, rating);
-						allRatings_byTrack.put(trackID, userRatings);
-					} else{
-						HashMap<Integer, Integer> userRatings = new HashMap<Integer, Integer>();
-						userRatings.put(trackID, rating);
-						allRatings_byTrack.put(userID, userRatings);
-					}
-				}
-				rs.close();
-				stat.close();
-				System.out.println("Done");
-				
-		 }	catch(Exception e){
-            System.err.println( e.getClass().getName() + ": " + e.getMessage() );
-			 System.exit(0);
-		 }
-		 
-		 return allRatings_byTrack;
-	}
 }
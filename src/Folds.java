@@ -0,0 +1,42 @@
+/*
+ * Splits the ratings of a RatingMatrix into k folds for cross-validation without copying any of them
+ * The fold of a rating is a hash of its (user, track) index pair, so it is the same in both orientations of the matrix
+ * 	and the split is fixed once k and the seed are chosen
+ * Kernels take a Folds object and a testFold - ratings in testFold are skipped as if they were not in the matrix
+ * 	a null Folds means every rating is used
+ */
+public class Folds
+{
+	public final int k;
+	private final long seed;
+
+	public Folds(int k, long seed)
+	{
+		if(k < 2){
+			throw new IllegalArgumentException("Need at least 2 folds, got " + k);
+		}
+		this.k = k;
+		this.seed = seed;
+	}
+
+	/*
+	 * Fold (0..k-1) that the rating of user for track belongs to
+	 */
+	public int fold(int user, int track)
+	{
+		//splitmix64 finaliser - spreads neighbouring indices evenly across the folds
+		long h = seed + (((long) user << 32) | (track & 0xffffffffL));
+		h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+		h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+		h = h ^ (h >>> 31);
+		return (int) ((h >>> 1) % k);
+	}
+
+	/*
+	 * True if the rating should be skipped when training a model that is tested on testFold
+	 */
+	public static boolean heldOut(Folds folds, int testFold, int user, int track)
+	{
+		return folds != null && folds.fold(user, track) == testFold;
+	}
+}
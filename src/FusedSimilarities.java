@@ -0,0 +1,128 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+
+/*
+ * Calculates several similarity measures for every pair of tracks in a single run
+ * Each pair's co-raters are walked once (see CoRatingSums) and every selected SimilarityMeasure is calculated from the result,
+ * 	so comparing measures no longer means re-running the all-pairs job once per measure
+ * Pairs are pruned by rater count exactly as in CalculateSimilarities.itemSimilarities (-DminCoRaters)
+ *
+ * Results are written either
+ * 		as one table with a column per measure (default) - a pair is kept if any measure is over 0, the table must not exist yet
+ * 			PredictRatings reads a single measure with -DsimilarityTable=itemSimilaritiesFused -DsimilarityColumn=<measure>
+ * 		or as one csv per measure (Item1,Item2,similarity), with only that measure's positive similarities
+ *
+ * Options: -Dmeasures (comma separated, default pearson,cosine,adjusted,jaccard,significance),
+ * 		-Doutput=table|files, -DfusedTable (default itemSimilaritiesFused), -DfilePrefix (default similarities_)
+ */
+public class FusedSimilarities
+{
+	static String measureNames = System.getProperty("measures", "pearson,cosine,adjusted,jaccard,significance");
+	static String output = System.getProperty("output", "table");
+	static String tableName = System.getProperty("fusedTable", "itemSimilaritiesFused");
+	static String filePrefix = System.getProperty("filePrefix", "similarities_");
+
+	static RatingMatrix ratings;
+	static RatingStatistics statistics;
+	static SimilarityMeasure[] measures;
+
+	static SimilarityTableWriter table;
+	static BufferedWriter[] files;
+
+	public static void main(String[] args) throws Exception
+	{
+		measures = SimilarityMeasure.parseList(measureNames);
+
+		CalculateSimilarities.openConnection(CalculateSimilarities.databaseName);
+		ratings = RatingMatrix.load(CalculateSimilarities.c, CalculateSimilarities.matrixFile);
+		CalculateSimilarities.ratings = ratings;
+		for(SimilarityMeasure measure : measures){
+			if(measure.needsStatistics()){
+				statistics = new RatingStatistics(ratings);
+				break;
+			}
+		}
+
+		openOutput();
+		fusedSimilarities();
+		closeOutput();
+	}
+
+	/*
+	 * Same loop as CalculateSimilarities.itemSimilarities, calculating every measure from one CoRatingSums per pair
+	 */
+	static void fusedSimilarities() throws Exception
+	{
+		CoRatingSums sums = new CoRatingSums(measures);
+		double[] values = new double[measures.length];
+		int minCoRaters = CalculateSimilarities.minCoRaters;
+
+		int[] candidates = CalculateSimilarities.tracksByRaterCount();
+
+		for(int track1 = 0; track1 < ratings.numTracks(); track1++){
+			int track1ID = ratings.trackID(track1);
+			for(int i = CalculateSimilarities.firstCandidate(track1, candidates); i < candidates.length; i++){
+				int track2 = candidates[i];
+				if(!sums.compute(ratings, track1, ratings, track2, statistics, null, -1, minCoRaters)) continue;
+
+				boolean keep = false;
+				for(int m = 0; m < measures.length; m++){
+					values[m] = measures[m].similarity(sums);
+					keep |= values[m] > 0;
+				}
+				if(keep){
+					save(track1ID, ratings.trackID(track2), values);
+				}
+			}
+			System.out.println("Processed " + track1ID);
+		}
+		CalculateSimilarities.earlyExits.add(sums.earlyExits);
+		CalculateSimilarities.printPruningStatistics();
+	}
+
+	/*
+	 * Create the results table (see SimilarityTableWriter), or open one csv per measure
+	 */
+	static void openOutput() throws Exception
+	{
+		if(output.equals("files")){
+			files = new BufferedWriter[measures.length];
+			for(int m = 0; m < measures.length; m++){
+				files[m] = new BufferedWriter(new FileWriter(filePrefix + measures[m].name() + ".csv"));
+			}
+			return;
+		}
+
+		table = new SimilarityTableWriter(CalculateSimilarities.c, tableName, measures, "-DfusedTable");
+	}
+
+	/*
+	 * Write one pair - a row in the table, or a line in each file whose measure is positive
+	 */
+	static void save(int track1ID, int track2ID, double[] values) throws Exception
+	{
+		if(files != null){
+			for(int m = 0; m < measures.length; m++){
+				if(values[m] > 0){
+					files[m].write(track1ID + "," + track2ID + "," + values[m] + "\n");
+				}
+			}
+			return;
+		}
+
+		table.save(track1ID, track2ID, values);
+	}
+
+	static void closeOutput() throws Exception
+	{
+		if(files != null){
+			for(BufferedWriter file : files){
+				file.close();
+			}
+		} else {
+			table.close();
+		}
+		CalculateSimilarities.c.close();
+		System.out.println("DONE");
+	}
+}
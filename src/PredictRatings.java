@@ -1,18 +1,42 @@
 import java.sql.*;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.*;
 import java.io.*;
 public class PredictRatings 
 {
 	static Connection c;
 	static ArrayList<int[]> testData = new ArrayList<int[]>();
-	private static HashMap<Integer, HashMap<Integer, Integer>> allRatings_byTrack;
-	private static HashMap<Integer, HashMap<Integer, Integer>> allRatings_byUser;
+	private static RatingMatrix ratings;
 	static FileWriter fw;
 	
 	//csv file to save predictions to
-	static String saveLocation = "predictTrainTest.csv";
+	static String saveLocation = System.getProperty("saveLocation", "predictTrainTest.csv");
 	public static String databaseName = "rating_data.db";
+	//set with -DratingMatrix=file, delete the file to rebuild it from trainingData
+	public static String matrixFile = System.getProperty("ratingMatrix", "rating_matrix.bin");
+	
+	//"pearson" uses sim_pearson for user-based predictions, "centred" uses mean-centred pearson over precomputed statistics
+	//set with -DuserSimilarity=centred - only used by alternativePrediction, so it needs -Dfallback=user to have any effect
+	//(track similarities come from similarityTable, or CalculateSimilarities.measure in CrossValidation)
+	public static String userSimilarity = System.getProperty("userSimilarity", "pearson");
+	private static RatingStatistics statistics;
+	
+	//"baseline" falls back to the baseline predictor when no rated track is similar, "user" tries alternativePrediction first
+	//set with -Dfallback=user
+	public static String fallback = System.getProperty("fallback", "baseline");
+	//with -Dresiduals=true neighbours predict the difference from the baseline rather than the rating itself
+	public static boolean useResiduals = Boolean.getBoolean("residuals");
+	private static BaselinePredictor baseline;
+	
+	//similarities are read from similarityColumn of similarityTable through store, for blockSize test rows at a time
+	//e.g. -DsimilarityTable=itemSimilaritiesFused -DsimilarityColumn=jaccard to use one measure from FusedSimilarities
+	//a block holds the neighbours of every track in it, so -DpredictBlock bounds the heap used by each thread
+	//-Dthreads=n predicts n blocks at once, each with its own read connection
+	public static String similarityTable = System.getProperty("similarityTable", "itemSimilarities");
+	public static String similarityColumn = System.getProperty("similarityColumn", "Similarity");
+	static int blockSize = Integer.getInteger("predictBlock", 256);
+	static int threads = Integer.getInteger("threads", 1);
+	private static SimilarityStore store;
 
 	public static void main(String[] args) {
 		init();
@@ -22,15 +46,25 @@ public class PredictRatings
 	
 	/*
 	 * Carry out set-up steps 
-	 * Open connection, get and restructure all the data,
+	 * Open connection, get the test data and map the training data,
+	 * Make sure the similarity table is indexed and open the read connections to it
 	 * Configure the filewriter
 	 */
 	static void init() {
 		openConnection(databaseName);
 		testData = getTestData();
+		SimilarityStore.createIndex(c, similarityTable, similarityColumn);
+		store = new SimilarityStore(databaseName, similarityTable, similarityColumn, threads);
 		
-		allRatings_byTrack = getAllRatings_byTrack();
-		allRatings_byUser = getAllRatings_byUser();
+		ratings = RatingMatrix.load(c, matrixFile);
+		baseline = new BaselinePredictor(ratings);
+		if(fallback.equals("user")){
+			if(userSimilarity.equals("centred")){
+				statistics = new RatingStatistics(ratings);
+			}
+		} else if(!userSimilarity.equals("pearson")){
+			System.out.println("userSimilarity " + userSimilarity + " only applies to user-based predictions, ignored without -Dfallback=user");
+		}
 		fw = null;
 		
 		try {
@@ -39,89 +73,184 @@ public class PredictRatings
 	}
 	
 	/*
-	 * For every value we have to predict, 
-	 * 		find other tracks that this user has rated, get their similarities to this track
-	 * 			Sum the similarities, and the similarity*rating product
-	 * 			Divide to get final rating
-	 * 		if all other tracks rated by this user have no similarity with this track, we need an alternative prediction function
+	 * Test rows are grouped by track and split into blocks of blockSize, predicted on a pool of threads
+	 * Each block fetches the similarities for all of its tracks in one go (see SimilarityStore)
+	 * 		testData is ordered by user, so without grouping nearly every row of a block would be a different track,
+	 * 		and a block would hold the full neighbour map of blockSize tracks at once
+	 * Predictions are written in the same order as testData, which Evaluate relies on
 	 * 
 	 *  FileWriter fw writes all values to a csv for analysis & submission
 	 */
-	private static void predictRatings() {
-		//For every value we have to predict
-		for(int[] entry : testData) {
-			int uID = entry[0];
-			int tID = entry[1];
-			
-			//System.out.println("Predicting " + uID + " -- " + tID);
-			HashMap<Integer, Double> similarities = getSimilaritiesForTrack(tID);
-			
-			double similaritySum = 0;
-			double simTrackSum = 0;
-			double predictedRating;
-			
-			//find other tracks the user has rated, get their similarity to this track
-			if(allRatings_byUser.containsKey(uID)){
-				for(Entry<Integer, Integer> e : allRatings_byUser.get(uID).entrySet()){
-					int trackID = e.getKey();
-					int rating = e.getValue();
-					
-					if(trackID != tID){
-						if(similarities.containsKey(trackID)){
-							double sim = similarities.get(trackID);
-							similaritySum += sim;
-							simTrackSum += (sim*rating);
-						} 			
-					}	
+	static void predictRatings() {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<double[]>> blocks = new ArrayList<Future<double[]>>();
+		final int[] order = rowsByTrack();
+		
+		for(int first = 0; first < order.length; first += blockSize) {
+			final int firstRow = first;
+			final int lastRow = Math.min(first + blockSize, order.length);
+			blocks.add(pool.submit(new Callable<double[]>() {
+				public double[] call() {
+					return predictBlock(order, firstRow, lastRow);
 				}
-
-				//if all other tracks rated by this user have no similarity with this track, we need an alternative prediction function
-				if(similaritySum == 0){
-					predictedRating = alternativePrediction(uID, tID);
-				} else {
-					predictedRating = (simTrackSum/similaritySum);
+			}));
+		}
+		
+		try {
+			double[] predictions = new double[order.length];
+			for(int block = 0; block < blocks.size(); block++) {
+				double[] blockPredictions = blocks.get(block).get();
+				for(int i = 0; i < blockPredictions.length; i++) {
+					predictions[order[block*blockSize + i]] = blockPredictions[i];
 				}
+			}
+			
+			for(int row = 0; row < predictions.length; row++) {
+				int[] entry = testData.get(row);
+				int uID = entry[0];
+				int tID = entry[1];
+				double predictedRating = predictions[row];
 				
 				System.out.println("Predicted user " + uID +  " would rate track " + tID + " --- " + predictedRating);
 				
-				try{
-					fw.append(String.valueOf(uID));
-					fw.append(",");
-					fw.append(String.valueOf(tID));
-					fw.append(",");
-					fw.append(String.valueOf(predictedRating));
-					fw.append("\n");
-				} catch (IOException e){
-					e.printStackTrace();
-				}
-			}
-			try {
-				fw.flush();
-			} catch (IOException e) {
-				e.printStackTrace();
+				fw.append(String.valueOf(uID));
+				fw.append(",");
+				fw.append(String.valueOf(tID));
+				fw.append(",");
+				fw.append(String.valueOf(predictedRating));
+				fw.append("\n");
 			}
+			fw.flush();
+		} catch (Exception e) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		} finally {
+			pool.shutdown();
 		}
+		store.close();
 		System.out.println("DONE");
 		try{ fw.close(); } catch (IOException e) { e.printStackTrace(); }
 	}
+	
+	/*
+	 * Indexes into testData, sorted by track ID (and by position in testData within a track)
+	 * Sorts (trackID, row) pairs packed into longs to avoid boxing, as in CalculateSimilarities.tracksByRaterCount
+	 */
+	private static int[] rowsByTrack() {
+		long[] keys = new long[testData.size()];
+		for(int row = 0; row < keys.length; row++) {
+			keys[row] = ((long) testData.get(row)[1] << 32) | row;
+		}
+		Arrays.sort(keys);
+		
+		int[] rows = new int[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			rows[i] = (int) keys[i];
+		}
+		return rows;
+	}
+	
+	/*
+	 * Predict the test rows order[first] to order[last-1], fetching the similarities of all their tracks in one go
+	 */
+	private static double[] predictBlock(int[] order, int first, int last) {
+		HashSet<Integer> trackIDs = new HashSet<Integer>();
+		for(int i = first; i < last; i++) {
+			trackIDs.add(testData.get(order[i])[1]);
+		}
+		HashMap<Integer, HashMap<Integer, Double>> similarities = store.getSimilarities(trackIDs);
+		
+		double[] predictions = new double[last - first];
+		for(int i = first; i < last; i++) {
+			int[] entry = testData.get(order[i]);
+			predictions[i - first] = predictRating(entry[0], entry[1], similarities.get(entry[1]));
+		}
+		return predictions;
+	}
+	
+	/*
+	 * For every value we have to predict, 
+	 * 		find other tracks that this user has rated, get their similarities to this track
+	 * 			Sum the similarities, and the similarity*rating product
+	 * 			Divide to get final rating
+	 * 		if all other tracks rated by this user have no similarity with this track, we need an alternative prediction function
+	 * 		users with no training ratings get the baseline prediction
+	 * With useResiduals the neighbours' ratings are taken relative to their baseline, and the weighted average added to this pair's baseline
+	 * PARAM - similarities of track tID to other tracks, <track, similarity>
+	 */
+	private static double predictRating(int uID, int tID, HashMap<Integer, Double> similarities) {
+		double similaritySum = 0;
+		double simTrackSum = 0;
+		double predictedRating;
+		
+		//find other tracks the user has rated, get their similarity to this track
+		int user = ratings.userIndex(uID);
+		int track = ratings.trackIndex(tID);
+		if(user >= 0){
+			for(int pos = ratings.userStart(user); pos < ratings.userEnd(user); pos++){
+				int trackID = ratings.trackID(ratings.ratedTrack(pos));
+				double rating = ratings.userRating(pos);
+				
+				if(trackID != tID){
+					if(similarities.containsKey(trackID)){
+						double sim = similarities.get(trackID);
+						if(useResiduals){
+							rating -= baseline.predict(user, ratings.ratedTrack(pos));
+						}
+						similaritySum += sim;
+						simTrackSum += (sim*rating);
+					} 			
+				}	
+			}
 
+			//if all other tracks rated by this user have no similarity with this track, we need an alternative prediction function
+			if(similaritySum == 0){
+				predictedRating = fallbackPrediction(ratings, statistics, baseline, user, track, null, -1);
+			} else if(useResiduals){
+				predictedRating = baseline.predict(user, track) + (simTrackSum/similaritySum);
+			} else {
+				predictedRating = (simTrackSum/similaritySum);
+			}
+		} else {
+			predictedRating = baseline.predict(user, track);
+		}
+		return predictedRating;
+	}
 
+	/*
+	 * Prediction for a user and track (by matrix index) when none of the user's other tracks are similar to this one
+	 * Constant-time baseline by default, or alternativePrediction when fallback is "user"
+	 * statistics and baseline must have been calculated with the same folds and testFold (see Folds)
+	 */
+	static double fallbackPrediction(RatingMatrix ratings, RatingStatistics statistics, BaselinePredictor baseline, int user, int track, Folds folds, int testFold) {
+		if(fallback.equals("user")){
+			return alternativePrediction(ratings, statistics, baseline, user, track, folds, testFold);
+		}
+		return baseline.predict(user, track);
+	}
 
 	/*
 	 * In case of item sparsity, we need a user based-prediction function
-	 * Uses pearson similarity, then works identical to standard prediction function
+	 * Uses pearson similarity (or mean-centred pearson when userSimilarity is 'centred'), then works identical to standard prediction function
+	 * If no other rater of the track is similar to this user, the baseline prediction is used
+	 * PARAM - user and track are matrix indexes, ratings in testFold of folds are ignored (see Folds)
 	 */
-	private static double alternativePrediction(int uID, int tID) {
+	static double alternativePrediction(RatingMatrix ratings, RatingStatistics statistics, BaselinePredictor baseline, int user, int track, Folds folds, int testFold) {
 		double predictedRating;
 		double similaritySum = 0;
 		double simTrackSum = 0;
 		
-		if(allRatings_byTrack.containsKey(tID)){
-			for(Entry<Integer, Integer> e : allRatings_byTrack.get(tID).entrySet()) {
-				int userID = e.getKey();
-				int rating = e.getValue();
-				if(userID != uID) {
-					double sim = sim_pearson(allRatings_byUser.get(uID), allRatings_byUser.get(userID));
+		if(track >= 0){
+			for(int pos = ratings.trackStart(track); pos < ratings.trackEnd(track); pos++) {
+				int otherUser = ratings.rater(pos);
+				int rating = ratings.trackRating(pos);
+				if(otherUser != user && !Folds.heldOut(folds, testFold, otherUser, track)) {
+					double sim;
+					if(userSimilarity.equals("centred")){
+						sim = statistics.sim_centredPearson(ratings, user, otherUser, folds, testFold);
+					} else {
+						sim = sim_pearson(ratings, user, otherUser, folds, testFold);
+					}
 					if(sim>0){
 						similaritySum += sim;
 						simTrackSum += (sim*rating);
@@ -130,7 +259,7 @@ public class PredictRatings
 			}
 		}
 		if(similaritySum == 0){
-			predictedRating = 0;
+			predictedRating = baseline.predict(user, track);
 		} else {
 			predictedRating = simTrackSum/similaritySum;
 		}
@@ -139,161 +268,59 @@ public class PredictRatings
 
 	/*
 	 * Pearson similarity adapted from 'Programming Collective Intelligence p13'
+	 * Both users' rows are sorted by track index, so the mutual tracks are found by merging them
+	 * Ratings in testFold of folds are skipped (see Folds)
 	 */
-	public static double sim_pearson(HashMap<Integer, Integer> user1Ratings, HashMap<Integer, Integer> user2Ratings){
-		Set<Integer> mutualEntries = getMutualEntries(user1Ratings, user2Ratings);
-		
-		if(mutualEntries.isEmpty()){
-			//System.out.println("NO MUTUAL TRACKS");
-			return 0;
-		}
+	public static double sim_pearson(RatingMatrix ratings, int user1, int user2, Folds folds, int testFold){
+		int i = ratings.userStart(user1), iEnd = ratings.userEnd(user1);
+		int j = ratings.userStart(user2), jEnd = ratings.userEnd(user2);
 		
 		double ratingE1, ratingE2;
 		
 		double sum1 = 0, sum2 = 0;
 		double sum1sq = 0, sum2sq = 0, sum12 = 0;
-		double mutualCount = mutualEntries.size();
+		double mutualCount = 0;
 		
-		//add up all preferences for each entry, their squares, and the product of the two users ratings
-		for(int entryID : mutualEntries){	
-			ratingE1 = user1Ratings.get(entryID);
-			ratingE2 = user2Ratings.get(entryID);
-			
-			sum1 += ratingE1;
-			sum2 += ratingE2;
-			
-			sum1sq += Math.pow(ratingE1, 2);
-			sum2sq += Math.pow(ratingE2, 2);
-			
-			sum12 += ratingE1 * ratingE2;
+		//add up all preferences for each mutual track, their squares, and the product of the two users ratings
+		while(i < iEnd && j < jEnd){
+			int track1 = ratings.ratedTrack(i), track2 = ratings.ratedTrack(j);
+			if(track1 < track2){
+				i++;
+			} else if(track1 > track2){
+				j++;
+			} else if(Folds.heldOut(folds, testFold, user1, track1) || Folds.heldOut(folds, testFold, user2, track1)){
+				i++;
+				j++;
+			} else {
+				ratingE1 = ratings.userRating(i);
+				ratingE2 = ratings.userRating(j);
+				
+				sum1 += ratingE1;
+				sum2 += ratingE2;
+				
+				sum1sq += ratingE1 * ratingE1;
+				sum2sq += ratingE2 * ratingE2;
+				
+				sum12 += ratingE1 * ratingE2;
+				mutualCount++;
+				i++;
+				j++;
+			}
 		}
 		
+		if(mutualCount == 0){
+			//System.out.println("NO MUTUAL TRACKS");
+			return 0;
+		}
 		
 		double numerator = sum12-(sum1*sum2/mutualCount);
 		double denominator = Math.sqrt((sum1sq - Math.pow(sum1, 2)/mutualCount) * (sum2sq - Math.pow(sum2, 2)/mutualCount));
-		
-		mutualEntries.clear();
 
 		if (denominator == 0) return 0;
 		
 		return numerator/denominator;
 	}
-	/*
-	 * Uses retainAll method to return intersection of two sets
-	 * In this case, all tracks rated by user 1 and user 2
-	 */
-	public static Set<Integer> getMutualEntries(HashMap<Integer, Integer> set1, HashMap<Integer, Integer> set2){
-		if(set1 == null || set2 == null){
-			return new HashSet<Integer>();
-		}
-		else{
-			Set<Integer> mutuals = new HashSet<Integer>(set1.keySet());
-			mutuals.retainAll(set2.keySet());
-		
-			return mutuals;
-		}
-	}
-
-	 /*
-	  * Read all training data from database and store it in a nested HashMap structure, indexed by user
-	  */
-	private static HashMap<Integer, HashMap<Integer, Integer>> getAllRatings_byUser() {
-		HashMap<Integer, HashMap<Integer, Integer>> allRatings_byUser = new HashMap<Integer, HashMap<Integer, Integer>>();
-		 
-		 try {
-				System.out.println("Loading ratings into user-centric map");
-				Statement stat = c.createStatement();
-				ResultSet rs = stat.executeQuery("SELECT * from trainingData");
-				
-				while(rs.next()){
-					int userID = rs.getInt("userID");
-					int trackID = rs.getInt("trackID");
-					int rating = rs.getInt("rating");
-					
-					if(allRatings_byUser.containsKey(userID)){
-						HashMap<Integer, Integer> trackRatings = allRatings_byUser.get(userID);
-						trackRatings.put(trackID, rating);
-						allRatings_byUser.put(userID, trackRatings);
-					} else{
-						HashMap<Integer, Integer> trackRatings = new HashMap<Integer, Integer>();
-						trackRatings.put(trackID, rating);
-						allRatings_byUser.put(userID, trackRatings);
-					}
-				}
-				rs.close();
-				stat.close();
-				System.out.println("Done");
-				
-		 }	catch(Exception e){
-            System.err.println( e.getClass().getName() + ": " + e.getMessage() );
-			 System.exit(0);
-		 }
-		 
-		 return allRatings_byUser;
-	}
-	
-	 /*
-	  * Read all training data from database and store it in a nested HashMap structure, indexed by track
-	  */
-	private static HashMap<Integer, HashMap<Integer, Integer>> getAllRatings_byTrack() {
-		
-		HashMap<Integer, HashMap<Integer, Integer>> allRatings_byTrack = new HashMap<Integer, HashMap<Integer, Integer>>();
-		 
-		 try {
-				System.out.println("Loading ratings into track-centric map");
-				Statement stat = c.createStatement();
-				ResultSet rs = stat.executeQuery("SELECT * from trainingData");
-				
-				while(rs.next()){
-					int userID = rs.getInt("userID");
-					int trackID = rs.getInt("trackID");
-					int rating = rs.getInt("rating");
-					
-					if(allRatings_byTrack.containsKey(trackID)){
-						HashMap<Integer, Integer> userRatings = allRatings_byTrack.get(trackID);
-						userRatings.put(userID, rating);
-						allRatings_byTrack.put(trackID, userRatings);
-					} else{
-						HashMap<Integer, Integer> userRatings = new HashMap<Integer, Integer>();
-						userRatings.put(trackID, rating);
-						allRatings_byTrack.put(userID, userRatings);
-					}
-				}
-				rs.close();
-				stat.close();
-				System.out.println("Done");
-				
-		 }	catch(Exception e){
-            System.err.println( e.getClass().getName() + ": " + e.getMessage() );
-			 System.exit(0);
-		 }
-		 
-		 return allRatings_byTrack;
-	}
 
-	/*
-	 * Load all similarities for given trackID into a map - <track, similarity> pairs
-	 * Nice and quick as database is indexed by track1ID
-	 */
-	public static HashMap<Integer, Double> getSimilaritiesForTrack(int trackID)
-	{
-		HashMap<Integer, Double> similarities = new HashMap<Integer, Double>();
-		//System.out.println("Getting similarities for track " + trackID);
-		try{
-			
-			Statement stat = c.createStatement();
-			ResultSet rs = stat.executeQuery("SELECT * from itemSimilarities WHERE Item1=" + trackID);
-			while(rs.next()){
-				similarities.put(rs.getInt("Item2"), rs.getDouble("Similarity"));
-			}
-		 } catch(Exception e){
-            System.err.println( e.getClass().getName() + ": " + e.getMessage() );
-			 System.exit(0);
-		 }
-		//System.out.println("DONE");
-		return similarities;
-	}
-	
 	/*
 	 * Load all data to be predicted
 	 * Returned as a list of [user, track] int arrays
@@ -0,0 +1,112 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/*
+ * On-heap copy of the ratings of a contiguous range of tracks, used by BlockedSimilarities
+ * Same compressed sparse row layout as the track side of RatingMatrix - row r holds positions offsets[r] to offsets[r+1]-1
+ * 	raters are sorted within each row, so two rows (from the same or different blocks) can be intersected by merging
+ * 	raters are user indexes when loaded from a RatingMatrix, user IDs when loaded from the database - either sorts the same way
+ */
+public class RatingBlock implements TrackRows
+{
+	public int[] trackIDs;
+	public int[] offsets;
+	public int[] raters;
+	public short[] ratings;
+
+	/*
+	 * Approximate heap size of a block holding numTracks tracks and numRatings ratings
+	 */
+	public static long bytes(long numTracks, long numRatings)
+	{
+		return 8*numTracks + 6*numRatings;
+	}
+
+	public int numTracks() { return trackIDs.length; }
+	public int raterCount(int row) { return offsets[row + 1] - offsets[row]; }
+
+	public int trackStart(int row) { return offsets[row]; }
+	public int trackEnd(int row) { return offsets[row + 1]; }
+	public int rater(int pos) { return raters[pos]; }
+	public int trackRating(int pos) { return ratings[pos]; }
+
+	private RatingBlock(int numTracks, int numRatings)
+	{
+		trackIDs = new int[numTracks];
+		offsets = new int[numTracks + 1];
+		raters = new int[numRatings];
+		ratings = new short[numRatings];
+	}
+
+	/*
+	 * Copy tracks firstTrack to lastTrack-1 (by matrix index) out of the mapped matrix
+	 */
+	public static RatingBlock fromMatrix(RatingMatrix matrix, int firstTrack, int lastTrack)
+	{
+		int base = matrix.trackStart(firstTrack);
+		RatingBlock block = new RatingBlock(lastTrack - firstTrack, matrix.trackStart(lastTrack) - base);
+
+		for(int track = firstTrack; track < lastTrack; track++){
+			int row = track - firstTrack;
+			block.trackIDs[row] = matrix.trackID(track);
+			block.offsets[row + 1] = matrix.trackEnd(track) - base;
+		}
+		for(int pos = 0; pos < block.raters.length; pos++){
+			block.raters[pos] = matrix.rater(base + pos);
+			block.ratings[pos] = (short) matrix.trackRating(base + pos);
+		}
+		return block;
+	}
+
+	/*
+	 * Create the covering index fromDatabase reads through, if it isn't there yet
+	 * Without it every block load is a full scan of trainingData plus a sort, once per pair of blocks
+	 */
+	public static void createIndex(Connection c)
+	{
+		try {
+			System.out.println("Checking index on trainingData.trackID");
+			Statement stat = c.createStatement();
+			stat.executeUpdate("CREATE INDEX IF NOT EXISTS trainingData_track_cover ON trainingData (trackID, userID, rating)");
+			c.commit();
+			stat.close();
+			System.out.println("Done");
+		} catch(Exception e) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		}
+	}
+
+	/*
+	 * Read the ratings of tracks with IDs firstTrackID to lastTrackID (inclusive) from trainingData
+	 * numTracks and numRatings must match what the range holds - see BlockedSimilarities.planFromDatabase
+	 * Reads through the index made by createIndex, so rows come back in order without a scan or sort
+	 */
+	public static RatingBlock fromDatabase(Connection c, int firstTrackID, int lastTrackID, int numTracks, int numRatings) throws Exception
+	{
+		RatingBlock block = new RatingBlock(numTracks, numRatings);
+
+		PreparedStatement stat = c.prepareStatement("SELECT trackID, userID, rating FROM trainingData WHERE trackID >= ? AND trackID <= ? ORDER BY trackID, userID");
+		stat.setInt(1, firstTrackID);
+		stat.setInt(2, lastTrackID);
+		ResultSet rs = stat.executeQuery();
+
+		int row = -1, pos = 0;
+		while(rs.next()){
+			int trackID = rs.getInt(1);
+			if(row < 0 || block.trackIDs[row] != trackID){
+				row++;
+				block.trackIDs[row] = trackID;
+			}
+			block.raters[pos] = rs.getInt(2);
+			block.ratings[pos] = (short) rs.getInt(3);
+			pos++;
+			block.offsets[row + 1] = pos;
+		}
+		rs.close();
+		stat.close();
+		return block;
+	}
+}
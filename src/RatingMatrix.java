@@ -0,0 +1,330 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/*
+ * Read-only rating matrix stored in a memory-mapped file rather than on the java heap
+ * Holds every rating in trainingData twice - once grouped by track and once grouped by user - in compressed sparse row form
+ * 		tracks and users are referred to by a dense index (0..numTracks-1, 0..numUsers-1), IDs are kept sorted so index order = ID order
+ * 		within a row the entries are sorted by index, so two rows can be intersected with a single merge
+ * As the file is mapped read-only, the OS page cache holds the data and any number of processes can share it
+ *
+ * File layout - header then 8 sections, each mapped separately (so each must be under 2GB, roughly 500M ratings)
+ * 		header: magic, version, numTracks, numUsers, numRatings, then the trainingData fingerprint - row count, sum of ratings, largest rowid
+ * 		trackIDs[numTracks], trackOffsets[numTracks+1], trackRaters[numRatings] (user index), trackRatings[numRatings] (short)
+ * 		userIDs[numUsers], userOffsets[numUsers+1], userTracks[numRatings] (track index), userRatings[numRatings] (short)
+ */
+public class RatingMatrix implements TrackRows
+{
+	static final int MAGIC = 0x52415445;
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 48;
+
+	private int numTracks;
+	private int numUsers;
+	private int numRatings;
+
+	private IntBuffer trackIDs, trackOffsets, trackRaters;
+	private ShortBuffer trackRatings;
+	private IntBuffer userIDs, userOffsets, userTracks;
+	private ShortBuffer userRatings;
+
+	/*
+	 * Open the matrix stored in fileName, building it from trainingData first if
+	 * 		the file does not exist yet, is not a complete matrix file,
+	 * 		or was built from different data - its fingerprint doesn't match trainingData's (see fingerprint)
+	 */
+	public static RatingMatrix load(Connection c, String fileName)
+	{
+		long[] trainingFingerprint = null;
+		try {
+			trainingFingerprint = fingerprint(c);
+		} catch(Exception e){
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		}
+
+		long[] storedFingerprint = storedFingerprint(fileName);
+		if(!Arrays.equals(storedFingerprint, trainingFingerprint)){
+			if(storedFingerprint != null){
+				System.out.println(fileName + " was built from different ratings (count, sum, last rowid " + Arrays.toString(storedFingerprint)
+						+ ", trainingData has " + Arrays.toString(trainingFingerprint) + ") - rebuilding");
+			}
+			build(c, fileName, trainingFingerprint);
+		}
+		return open(fileName);
+	}
+
+	/*
+	 * Cheap summary of trainingData, taken in one query - {number of ratings, sum of ratings, largest rowid}
+	 * Replacing or editing the ratings changes it even when the number of rows stays the same
+	 */
+	private static long[] fingerprint(Connection c) throws Exception
+	{
+		Statement stat = c.createStatement();
+		ResultSet rs = stat.executeQuery("SELECT COUNT(*), SUM(rating), MAX(rowid) FROM trainingData");
+		rs.next();
+		long[] fingerprint = { rs.getLong(1), rs.getLong(2), rs.getLong(3) };
+		rs.close();
+		stat.close();
+		return fingerprint;
+	}
+
+	/*
+	 * Fingerprint recorded in the header of fileName, or null if it is missing or not a matrix file
+	 */
+	private static long[] storedFingerprint(String fileName)
+	{
+		if(!new File(fileName).exists()) return null;
+		try {
+			RandomAccessFile file = new RandomAccessFile(fileName, "r");
+			long[] fingerprint = null;
+			if(file.length() >= HEADER_SIZE && file.readInt() == MAGIC && file.readInt() == VERSION){
+				file.skipBytes(12);
+				fingerprint = new long[] { file.readInt(), file.readLong(), file.readLong() };
+			}
+			file.close();
+			return fingerprint;
+		} catch(Exception e){
+			return null;
+		}
+	}
+
+	/*
+	 * Map an existing matrix file read-only
+	 */
+	public static RatingMatrix open(String fileName)
+	{
+		RatingMatrix matrix = new RatingMatrix();
+		try {
+			System.out.println("Mapping rating matrix " + fileName);
+			RandomAccessFile file = new RandomAccessFile(fileName, "r");
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION){
+				throw new IllegalStateException(fileName + " is not a rating matrix file");
+			}
+			matrix.numTracks = header.getInt(8);
+			matrix.numUsers = header.getInt(12);
+			matrix.numRatings = header.getInt(16);
+
+			long[] sections = sectionOffsets(matrix.numTracks, matrix.numUsers, matrix.numRatings);
+			matrix.trackIDs = mapSection(channel, MapMode.READ_ONLY, sections, 0).asIntBuffer();
+			matrix.trackOffsets = mapSection(channel, MapMode.READ_ONLY, sections, 1).asIntBuffer();
+			matrix.trackRaters = mapSection(channel, MapMode.READ_ONLY, sections, 2).asIntBuffer();
+			matrix.trackRatings = mapSection(channel, MapMode.READ_ONLY, sections, 3).asShortBuffer();
+			matrix.userIDs = mapSection(channel, MapMode.READ_ONLY, sections, 4).asIntBuffer();
+			matrix.userOffsets = mapSection(channel, MapMode.READ_ONLY, sections, 5).asIntBuffer();
+			matrix.userTracks = mapSection(channel, MapMode.READ_ONLY, sections, 6).asIntBuffer();
+			matrix.userRatings = mapSection(channel, MapMode.READ_ONLY, sections, 7).asShortBuffer();
+
+			//the mappings stay valid after the channel is closed
+			channel.close();
+			file.close();
+			System.out.println("Mapped " + matrix.numRatings + " ratings - " + matrix.numTracks + " tracks, " + matrix.numUsers + " users");
+		} catch(Exception e){
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		}
+		return matrix;
+	}
+
+	/*
+	 * Write trainingData to fileName in the layout described above
+	 * Rows are streamed from SQLite already sorted and written straight into the mapped file,
+	 * 	so the heap only ever holds the ID and offset arrays
+	 * The matrix is written to fileName.tmp and only moved to fileName once complete,
+	 * 	so a build that is killed part way never leaves a file that load would accept
+	 */
+	public static void build(Connection c, String fileName)
+	{
+		try {
+			build(c, fileName, fingerprint(c));
+		} catch(Exception e){
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		}
+	}
+
+	private static void build(Connection c, String fileName, long[] fingerprint)
+	{
+		File tmpFile = new File(fileName + ".tmp");
+		try {
+			System.out.println("Building rating matrix " + fileName);
+			int[][] tracks = countRatings(c, "trackID");
+			int[][] users = countRatings(c, "userID");
+			int[] trackIDs = tracks[0], userIDs = users[0];
+			int numRatings = tracks[1][trackIDs.length];
+
+			long[] sections = sectionOffsets(trackIDs.length, userIDs.length, numRatings);
+			RandomAccessFile file = new RandomAccessFile(tmpFile, "rw");
+			file.setLength(sections[sections.length - 1]);
+			FileChannel channel = file.getChannel();
+
+			MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, trackIDs.length).putInt(12, userIDs.length).putInt(16, numRatings);
+			header.putInt(20, (int) fingerprint[0]).putLong(24, fingerprint[1]).putLong(32, fingerprint[2]);
+			header.force();
+
+			writeRows(c, channel, sections, 0, tracks, "trackID", "userID", userIDs);
+			writeRows(c, channel, sections, 4, users, "userID", "trackID", trackIDs);
+
+			channel.close();
+			file.close();
+			Files.move(tmpFile.toPath(), new File(fileName).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			System.out.println("Done");
+		} catch(Exception e){
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			tmpFile.delete();
+			System.exit(0);
+		}
+	}
+
+	/*
+	 * Returns the sorted distinct values of column and the row offsets built from their rating counts - {ids, offsets}
+	 */
+	private static int[][] countRatings(Connection c, String column) throws Exception
+	{
+		int[] ids = new int[1024];
+		int[] offsets = new int[1025];
+		int rows = 0;
+		long total = 0;
+
+		Statement stat = c.createStatement();
+		ResultSet rs = stat.executeQuery("SELECT " + column + ", COUNT(*) FROM trainingData GROUP BY " + column + " ORDER BY " + column);
+		while(rs.next()){
+			if(rows == ids.length){
+				ids = Arrays.copyOf(ids, rows*2);
+				offsets = Arrays.copyOf(offsets, rows*2 + 1);
+			}
+			ids[rows] = rs.getInt(1);
+			total += rs.getInt(2);
+			if(total > Integer.MAX_VALUE){
+				throw new IllegalStateException("Too many ratings for a single rating matrix");
+			}
+			offsets[rows + 1] = (int) total;
+			rows++;
+		}
+		rs.close();
+		stat.close();
+
+		return new int[][] { Arrays.copyOf(ids, rows), Arrays.copyOf(offsets, rows + 1) };
+	}
+
+	/*
+	 * Write one orientation of the matrix into the 4 sections starting at firstSection
+	 * rowColumn is the column grouped into rows, entryColumn is translated to a dense index using entryIDs
+	 */
+	private static void writeRows(Connection c, FileChannel channel, long[] sections, int firstSection,
+			int[][] rows, String rowColumn, String entryColumn, int[] entryIDs) throws Exception
+	{
+		System.out.println("Writing ratings by " + rowColumn);
+		MappedByteBuffer ids = mapSection(channel, MapMode.READ_WRITE, sections, firstSection);
+		MappedByteBuffer offsets = mapSection(channel, MapMode.READ_WRITE, sections, firstSection + 1);
+		MappedByteBuffer entries = mapSection(channel, MapMode.READ_WRITE, sections, firstSection + 2);
+		MappedByteBuffer ratings = mapSection(channel, MapMode.READ_WRITE, sections, firstSection + 3);
+
+		ids.asIntBuffer().put(rows[0]);
+		offsets.asIntBuffer().put(rows[1]);
+
+		IntBuffer entryBuffer = entries.asIntBuffer();
+		ShortBuffer ratingBuffer = ratings.asShortBuffer();
+
+		Statement stat = c.createStatement();
+		ResultSet rs = stat.executeQuery("SELECT " + entryColumn + ", rating FROM trainingData ORDER BY " + rowColumn + ", " + entryColumn);
+		while(rs.next()){
+			int rating = rs.getInt(2);
+			if(rating < Short.MIN_VALUE || rating > Short.MAX_VALUE){
+				throw new IllegalStateException("Rating " + rating + " does not fit in the matrix");
+			}
+			entryBuffer.put(Arrays.binarySearch(entryIDs, rs.getInt(1)));
+			ratingBuffer.put((short) rating);
+		}
+		rs.close();
+		stat.close();
+
+		ids.force();
+		offsets.force();
+		entries.force();
+		ratings.force();
+	}
+
+	/*
+	 * Byte offset of each section, plus the total file length as the last element
+	 * Sections are 8-byte aligned
+	 */
+	private static long[] sectionOffsets(int numTracks, int numUsers, int numRatings)
+	{
+		long[] sizes = {
+			4L*numTracks, 4L*(numTracks + 1), 4L*numRatings, 2L*numRatings,
+			4L*numUsers, 4L*(numUsers + 1), 4L*numRatings, 2L*numRatings
+		};
+		long[] offsets = new long[sizes.length + 1];
+		offsets[0] = HEADER_SIZE;
+		for(int i = 0; i < sizes.length; i++){
+			offsets[i + 1] = (offsets[i] + sizes[i] + 7) & ~7L;
+		}
+		return offsets;
+	}
+
+	private static MappedByteBuffer mapSection(FileChannel channel, MapMode mode, long[] sections, int section) throws Exception
+	{
+		return channel.map(mode, sections[section], sections[section + 1] - sections[section]);
+	}
+
+	public int numTracks() { return numTracks; }
+	public int numUsers() { return numUsers; }
+	public int numRatings() { return numRatings; }
+
+	public int trackID(int track) { return trackIDs.get(track); }
+	public int userID(int user) { return userIDs.get(user); }
+
+	/*
+	 * Dense index of a track or user ID, or -1 if it has no ratings
+	 */
+	public int trackIndex(int trackID) { return search(trackIDs, numTracks, trackID); }
+	public int userIndex(int userID) { return search(userIDs, numUsers, userID); }
+
+	/*
+	 * Ratings of a track are at positions trackStart(track) to trackEnd(track)-1
+	 * 		rater(pos) - user index who gave the rating, trackRating(pos) - the rating
+	 */
+	public int trackStart(int track) { return trackOffsets.get(track); }
+	public int trackEnd(int track) { return trackOffsets.get(track + 1); }
+	public int rater(int pos) { return trackRaters.get(pos); }
+	public int trackRating(int pos) { return trackRatings.get(pos); }
+
+	/*
+	 * Ratings by a user are at positions userStart(user) to userEnd(user)-1
+	 * 		ratedTrack(pos) - track index that was rated, userRating(pos) - the rating
+	 */
+	public int userStart(int user) { return userOffsets.get(user); }
+	public int userEnd(int user) { return userOffsets.get(user + 1); }
+	public int ratedTrack(int pos) { return userTracks.get(pos); }
+	public int userRating(int pos) { return userRatings.get(pos); }
+
+	private static int search(IntBuffer ids, int length, int id)
+	{
+		int low = 0, high = length - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int midID = ids.get(mid);
+			if(midID < id) low = mid + 1;
+			else if(midID > id) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Per-user and per-track statistics, computed once after the ratings are loaded
+ * Used by the adjusted cosine measure (see CoRatingSums) and the 'centred' user similarity of PredictRatings,
+ * 	so that each pair only costs one sparse dot product over its co-raters
+ * Arrays are indexed by the dense user/track index of the RatingMatrix they were computed from
+ * 	userMeans - mean rating given by each user
+ * 	userNorms - length of each user's rating vector after centring by that user's mean
+ * 	trackNorms - length of each track's rating vector after centring every rating by the mean of the user who gave it
+ */
+public class RatingStatistics
+{
+	public double[] userMeans;
+	public double[] userNorms;
+	public double[] trackNorms;
+
+	public RatingStatistics(RatingMatrix ratings){
+		this(ratings, null, -1);
+	}
+
+	/*
+	 * Two passes over the matrix
+	 * 		first walks each user's row for their mean and centred norm
+	 * 		second walks each track's row, centring every rating by the mean of its rater
+	 * Ratings in testFold of folds are left out (see Folds), a user with no ratings left gets a mean and norm of 0
+	 */
+	public RatingStatistics(RatingMatrix ratings, Folds folds, int testFold){
+		System.out.println("Calculating rating statistics");
+		userMeans = new double[ratings.numUsers()];
+		userNorms = new double[ratings.numUsers()];
+		trackNorms = new double[ratings.numTracks()];
+
+		for(int user = 0; user < ratings.numUsers(); user++){
+			int start = ratings.userStart(user), end = ratings.userEnd(user);
+			double sum = 0;
+			int count = 0;
+			for(int pos = start; pos < end; pos++){
+				if(!Folds.heldOut(folds, testFold, user, ratings.ratedTrack(pos))){
+					sum += ratings.userRating(pos);
+					count++;
+				}
+			}
+			double mean = count == 0 ? 0 : sum/count;
+			double squares = 0;
+			for(int pos = start; pos < end; pos++){
+				if(!Folds.heldOut(folds, testFold, user, ratings.ratedTrack(pos))){
+					double deviation = ratings.userRating(pos) - mean;
+					squares += deviation * deviation;
+				}
+			}
+			userMeans[user] = mean;
+			userNorms[user] = Math.sqrt(squares);
+		}
+
+		for(int track = 0; track < ratings.numTracks(); track++){
+			double squares = 0;
+			for(int pos = ratings.trackStart(track); pos < ratings.trackEnd(track); pos++){
+				if(!Folds.heldOut(folds, testFold, ratings.rater(pos), track)){
+					double deviation = ratings.trackRating(pos) - userMeans[ratings.rater(pos)];
+					squares += deviation * deviation;
+				}
+			}
+			trackNorms[track] = Math.sqrt(squares);
+		}
+		System.out.println("Done");
+	}
+
+	/*
+	 * Mean-centred pearson similarity between two users
+	 * Ratings are centred by each user's overall mean rather than their mean over the mutual tracks,
+	 * 	so the denominator is just the product of the precomputed user norms
+	 * Ratings in testFold of folds are skipped (see Folds)
+	 */
+	public double sim_centredPearson(RatingMatrix ratings, int user1, int user2, Folds folds, int testFold){
+		double norm = userNorms[user1] * userNorms[user2];
+		if(norm == 0) return 0;
+
+		double mean1 = userMeans[user1], mean2 = userMeans[user2];
+		int i = ratings.userStart(user1), iEnd = ratings.userEnd(user1);
+		int j = ratings.userStart(user2), jEnd = ratings.userEnd(user2);
+		double dot = 0;
+
+		while(i < iEnd && j < jEnd){
+			int track1 = ratings.ratedTrack(i), track2 = ratings.ratedTrack(j);
+			if(track1 < track2) i++;
+			else if(track1 > track2) j++;
+			else if(Folds.heldOut(folds, testFold, user1, track1) || Folds.heldOut(folds, testFold, user2, track1)){
+				i++;
+				j++;
+			}
+			else {
+				dot += (ratings.userRating(i) - mean1) * (ratings.userRating(j) - mean2);
+				i++;
+				j++;
+			}
+		}
+		return dot/norm;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Compares similarity measures of CalculateSimilarities, by speed and by the quality of the item model each one gives
+ * Speed - times a sample of track pairs with each measure and reports pairs/sec
+ * 		each measure only accumulates the sums it uses, so e.g. adjusted cosine is timed as the centred dot product alone
+ * 		every measure gets an untimed warm-up pass first, then the measures take turns for -Drepeats timed rounds,
+ * 		so no measure gains or loses from running first while the JIT is still compiling
+ * Quality - with -DevaluateTable, predicts the test set with PredictRatings once per measure, reading that measure's column
+ * 		of the table as the item similarities, then reports the RMSE and MAE from Evaluate
+ * 		the table is written beforehand by FusedSimilarities with the same measures, e.g. -Dmeasures=pearson,adjusted
+ * RMSE and MAE are also reported for any prediction files given as arguments
+ *
+ * Usage: java SimilarityBenchmark [predictions.csv ...]
+ * 		-Dmeasures sets the measures compared (comma separated, default pearson,adjusted)
+ * 		-DevaluateTable names the FusedSimilarities table to predict from, predictions go to benchmark_<measure>.csv
+ * 		-DsampleTracks sets how many tracks are compared against every other track (default 200)
+ * 		-Drepeats sets the number of timed rounds (default 5)
+ * 		-DminCoRaters is applied as in CalculateSimilarities, the number of comparisons stopped early is reported
+ * 		the prediction options of PredictRatings (-Dfallback, -Dresiduals, -Dthreads) apply to every measure alike
+ */
+public class SimilarityBenchmark
+{
+	static String measureNames = System.getProperty("measures", "pearson,adjusted");
+	static String evaluateTable = System.getProperty("evaluateTable");
+	static int sampleTracks = Integer.getInteger("sampleTracks", 200);
+	static int repeats = Integer.getInteger("repeats", 5);
+	static RatingStatistics statistics;
+
+	public static void main(String[] args) throws Exception
+	{
+		SimilarityMeasure[] measures = SimilarityMeasure.parseList(measureNames);
+
+		CalculateSimilarities.openConnection(CalculateSimilarities.databaseName);
+		CalculateSimilarities.ratings = RatingMatrix.load(CalculateSimilarities.c, CalculateSimilarities.matrixFile);
+
+		for(SimilarityMeasure measure : measures){
+			if(measure.needsStatistics() && statistics == null){
+				long start = System.nanoTime();
+				statistics = new RatingStatistics(CalculateSimilarities.ratings);
+				System.out.println("Statistics precomputed in " + (System.nanoTime() - start)/1000000 + " ms");
+			}
+		}
+
+		for(SimilarityMeasure measure : measures){
+			benchmark(measure);
+		}
+		double[] seconds = new double[measures.length];
+		long pairs = 0;
+		for(int round = 0; round < repeats; round++){
+			for(int m = 0; m < measures.length; m++){
+				long roundStart = System.nanoTime();
+				pairs = benchmark(measures[m]);
+				seconds[m] += (System.nanoTime() - roundStart)/1e9;
+			}
+		}
+		for(int m = 0; m < measures.length; m++){
+			System.out.println(measures[m].name() + ": " + pairs + " pairs in " + seconds[m]/repeats + " s on average over " + repeats
+					+ " rounds - " + (long)(pairs*repeats/seconds[m]) + " pairs/sec");
+		}
+		CalculateSimilarities.c.close();
+
+		if(evaluateTable != null){
+			for(SimilarityMeasure measure : measures){
+				PredictRatings.similarityTable = evaluateTable;
+				PredictRatings.similarityColumn = measure.name();
+				PredictRatings.saveLocation = "benchmark_" + measure.name() + ".csv";
+				PredictRatings.init();
+				PredictRatings.predictRatings();
+				PredictRatings.c.close();
+				evaluate(measure.name(), PredictRatings.saveLocation);
+			}
+		}
+		for(String fileName : args){
+			evaluate(fileName, fileName);
+		}
+	}
+
+	/*
+	 * Compare the first sampleTracks tracks against every track using measure, returns the number of pairs compared
+	 * Statistics are only handed to CalculateSimilarities for measures that need them, so each measure is timed
+	 * 	doing just its own work (see CoRatingSums) - adjusted cosine is the centred dot product alone
+	 * The sum of all similarities is printed so the JIT cannot discard the work
+	 */
+	static long benchmark(SimilarityMeasure measure)
+	{
+		CalculateSimilarities.measure = measure;
+		CalculateSimilarities.statistics = measure.needsStatistics() ? statistics : null;
+
+		int numTracks = CalculateSimilarities.ratings.numTracks();
+		int sampleSize = Math.min(sampleTracks, numTracks);
+
+		long pairs = 0;
+		double checksum = 0;
+		CalculateSimilarities.earlyExits.reset();
+
+		for(int track1 = 0; track1 < sampleSize; track1++){
+			for(int track2 = 0; track2 < numTracks; track2++){
+				checksum += CalculateSimilarities.similarity(track1, track2);
+				pairs++;
+			}
+		}
+
+		System.out.println(measure.name() + ": " + CalculateSimilarities.earlyExits.sum() + " stopped early (checksum " + checksum + ")");
+		return pairs;
+	}
+
+	/*
+	 * Report Evaluate's RMSE and MAE for the predictions in fileName
+	 */
+	static void evaluate(String label, String fileName) throws Exception
+	{
+		Evaluate.inputFileName = fileName;
+		Evaluate.init();
+		System.out.println(label + " RMSE: " + Evaluate.evaluateRMSE() + " MAE: " + Evaluate.evaluateMAE());
+		Evaluate.c.close();
+	}
+}
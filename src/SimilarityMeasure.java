@@ -0,0 +1,153 @@
+/*
+ * A way of scoring how similar two tracks are, calculated from the CoRatingSums of the pair
+ * Because every measure works from the same sums, FusedSimilarities can calculate several of them from one walk over the co-raters
+ * Measures are picked by name - -DsimilarityMeasure for CalculateSimilarities and CrossValidation, -Dmeasures for the all-pairs jobs
+ * To add a measure, implement this interface and add it to forName
+ */
+public interface SimilarityMeasure
+{
+	/*
+	 * Short name, used on the command line and as the column/file name of its results
+	 */
+	String name();
+
+	/*
+	 * Similarity of the pair - only called when the pair has at least one co-rater
+	 */
+	double similarity(CoRatingSums sums);
+
+	/*
+	 * True if the measure uses the centred sums, which need RatingStatistics
+	 */
+	default boolean needsStatistics()
+	{
+		return false;
+	}
+
+	/*
+	 * True if the measure uses the sums of the raw ratings (sum1, sum2, sum1sq, sum2sq, sum12)
+	 */
+	default boolean needsRatingSums()
+	{
+		return true;
+	}
+
+	/*
+	 * True if the measure uses count1 and count2, which take a second walk over both rows when folds are in use
+	 */
+	default boolean needsCounts()
+	{
+		return false;
+	}
+
+	/*
+	 * Look up a measure by name - pearson, cosine, adjusted, jaccard or significance
+	 */
+	static SimilarityMeasure forName(String name)
+	{
+		if(name.equals("pearson")) return new Pearson();
+		if(name.equals("cosine")) return new Cosine();
+		if(name.equals("adjusted")) return new AdjustedCosine();
+		if(name.equals("jaccard")) return new Jaccard();
+		if(name.equals("significance")) return new SignificanceWeightedPearson();
+		throw new IllegalArgumentException("Unknown similarity measure " + name);
+	}
+
+	/*
+	 * Look up a comma separated list of measure names, as given to -Dmeasures
+	 */
+	static SimilarityMeasure[] parseList(String names)
+	{
+		String[] split = names.split(",");
+		SimilarityMeasure[] measures = new SimilarityMeasure[split.length];
+		for(int i = 0; i < split.length; i++){
+			measures[i] = forName(split[i].trim());
+		}
+		return measures;
+	}
+
+	/*
+	 * Pearson correlation over the co-raters - the default
+	 * Adapted from 'Programming Collective Intelligence (Toby Segaran)' p13
+	 */
+	class Pearson implements SimilarityMeasure
+	{
+		public String name() { return "pearson"; }
+
+		public double similarity(CoRatingSums s)
+		{
+			double n = s.mutualCount;
+			double numerator = s.sum12 - (s.sum1*s.sum2/n);
+			double denominator = Math.sqrt((s.sum1sq - s.sum1*s.sum1/n) * (s.sum2sq - s.sum2*s.sum2/n));
+			if(denominator == 0) return 0;
+			return numerator/denominator;
+		}
+	}
+
+	/*
+	 * Cosine of the angle between the two tracks' raw ratings, over the co-raters
+	 */
+	class Cosine implements SimilarityMeasure
+	{
+		public String name() { return "cosine"; }
+
+		public double similarity(CoRatingSums s)
+		{
+			double denominator = Math.sqrt(s.sum1sq * s.sum2sq);
+			if(denominator == 0) return 0;
+			return s.sum12/denominator;
+		}
+	}
+
+	/*
+	 * Adjusted cosine - ratings centred by each user's mean, divided by the track norms from RatingStatistics
+	 */
+	class AdjustedCosine implements SimilarityMeasure
+	{
+		public String name() { return "adjusted"; }
+
+		public boolean needsStatistics() { return true; }
+		public boolean needsRatingSums() { return false; }
+
+		public double similarity(CoRatingSums s)
+		{
+			double denominator = s.norm1 * s.norm2;
+			if(denominator == 0) return 0;
+			return s.centredDot/denominator;
+		}
+	}
+
+	/*
+	 * Share of the users who rated either track that rated both - ignores the rating values
+	 */
+	class Jaccard implements SimilarityMeasure
+	{
+		public String name() { return "jaccard"; }
+
+		public boolean needsRatingSums() { return false; }
+		public boolean needsCounts() { return true; }
+
+		public double similarity(CoRatingSums s)
+		{
+			return (double) s.mutualCount / (s.count1 + s.count2 - s.mutualCount);
+		}
+	}
+
+	/*
+	 * Pearson scaled down by mutualCount/threshold when the pair has fewer than threshold co-raters,
+	 * 	so correlations based on a handful of users count for less (Herlocker et al.)
+	 * -DsignificanceThreshold sets the threshold, default 50
+	 */
+	class SignificanceWeightedPearson implements SimilarityMeasure
+	{
+		static int threshold = Integer.getInteger("significanceThreshold", 50);
+		private final Pearson pearson = new Pearson();
+
+		public String name() { return "significance"; }
+
+		public double similarity(CoRatingSums s)
+		{
+			return pearson.similarity(s) * Math.min(s.mutualCount, threshold) / threshold;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Read side of the item similarity table in SQLite
+ * Reads one similarity column - "Similarity" in tables written by CalculateSimilarities, or a measure's column from FusedSimilarities
+ * 	only positive similarities are returned
+ * Similarities for many tracks are fetched together - one "WHERE Item1 IN (...)" query per batchSize tracks
+ * 	through a prepared statement that is reused for every query, so the SQL is only compiled once per connection
+ * A covering index on (Item1, Item2, Similarity) lets SQLite answer these queries from the index alone
+ * Holds a small pool of read-only connections so several threads can fetch at once - each query borrows one
+ *
+ * Options: -DsimilarityBatch (track IDs per query, default 64), -DsqliteMmap (bytes, default 256MB),
+ * 		-DsqliteCache (KB of page cache per connection, default 64MB)
+ */
+public class SimilarityStore
+{
+	static int batchSize = Integer.getInteger("similarityBatch", 64);
+	static long mmapSize = Long.getLong("sqliteMmap", 256L*1024*1024);
+	static long cacheSize = Long.getLong("sqliteCache", 64L*1024);
+
+	private final String tableName;
+	private final String column;
+	private final int poolSize;
+	private final BlockingQueue<PreparedStatement> statements;
+
+	/*
+	 * Open poolSize read-only connections to databaseName, each with its own prepared batch query on column of tableName
+	 * The covering index must already exist - see createIndex
+	 */
+	public SimilarityStore(String databaseName, String tableName, String column, int poolSize)
+	{
+		this.tableName = tableName;
+		this.column = column;
+		this.poolSize = poolSize;
+		statements = new ArrayBlockingQueue<PreparedStatement>(poolSize);
+
+		StringBuilder sql = new StringBuilder("SELECT Item1, Item2, " + column + " FROM " + tableName + " WHERE Item1 IN (?");
+		for(int i = 1; i < batchSize; i++){
+			sql.append(",?");
+		}
+		sql.append(") AND " + column + " > 0");
+
+		try {
+			Class.forName("org.sqlite.JDBC");
+			for(int i = 0; i < poolSize; i++){
+				Connection c = DriverManager.getConnection("jdbc:sqlite:" + databaseName);
+				Statement stat = c.createStatement();
+				stat.execute("PRAGMA query_only = 1");
+				stat.execute("PRAGMA mmap_size = " + mmapSize);
+				stat.execute("PRAGMA cache_size = -" + cacheSize);
+				stat.close();
+				statements.add(c.prepareStatement(sql.toString()));
+			}
+			System.out.println("Opened " + poolSize + " read connection(s) to " + tableName + "." + column);
+		} catch ( Exception e ) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		}
+	}
+
+	/*
+	 * Create the covering index used by the batch query on column, if it isn't there yet
+	 * Needs a writable connection, and can take a while the first time on a large table
+	 */
+	public static void createIndex(Connection c, String tableName, String column)
+	{
+		try {
+			System.out.println("Checking index on " + tableName + "." + column);
+			Statement stat = c.createStatement();
+			stat.executeUpdate("CREATE INDEX IF NOT EXISTS " + tableName + "_" + column + "_cover ON " + tableName + " (Item1, Item2, " + column + ")");
+			c.commit();
+			stat.close();
+			System.out.println("Done");
+		} catch(Exception e) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		}
+	}
+
+	/*
+	 * Load all similarities for the given track IDs - <Item1, <Item2, similarity>>
+	 * Every requested track has an entry, empty if it has no similarities
+	 * Safe to call from several threads, blocks while all connections are in use
+	 */
+	public HashMap<Integer, HashMap<Integer, Double>> getSimilarities(Collection<Integer> trackIDs)
+	{
+		HashMap<Integer, HashMap<Integer, Double>> similarities = new HashMap<Integer, HashMap<Integer, Double>>();
+		List<Integer> ids = new ArrayList<Integer>(trackIDs);
+		for(int id : ids){
+			similarities.put(id, new HashMap<Integer, Double>());
+		}
+		if(ids.isEmpty()) return similarities;
+
+		PreparedStatement stat = null;
+		try {
+			stat = statements.take();
+			for(int first = 0; first < ids.size(); first += batchSize){
+				//a short final batch repeats its last ID to fill the statement - IN ignores duplicates
+				for(int i = 0; i < batchSize; i++){
+					stat.setInt(i + 1, ids.get(Math.min(first + i, ids.size() - 1)));
+				}
+				ResultSet rs = stat.executeQuery();
+				while(rs.next()){
+					similarities.get(rs.getInt(1)).put(rs.getInt(2), rs.getDouble(3));
+				}
+				rs.close();
+			}
+		} catch(Exception e){
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+		} finally {
+			if(stat != null) statements.add(stat);
+		}
+		return similarities;
+	}
+
+	/*
+	 * Close every pooled statement and connection, waiting for any in use to be returned
+	 */
+	public void close()
+	{
+		try {
+			for(int i = 0; i < poolSize; i++){
+				PreparedStatement stat = statements.take();
+				Connection c = stat.getConnection();
+				stat.close();
+				c.close();
+			}
+			System.out.println("Closed read connections to " + tableName);
+		} catch(Exception e){
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+		}
+	}
+}
@@ -0,0 +1,78 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/*
+ * Writes track pairs into a new table with one column per SimilarityMeasure - Item1, Item2, then a REAL column named after each measure
+ * Used by FusedSimilarities and BlockedSimilarities
+ * The insert names its columns, and an existing table is never written into - its columns may be for other measures
+ * 	or in another order, and its pairs would be stored a second time
+ * Rows are committed every 750,000, as in CalculateSimilarities.saveSimilarity
+ */
+public class SimilarityTableWriter
+{
+	private final Connection c;
+	private final PreparedStatement insert;
+	private final int numMeasures;
+	private long saved = 0;
+
+	/*
+	 * Create tableName for measures on c
+	 * option is the -D setting naming the table, mentioned in the error if the table already exists
+	 */
+	public SimilarityTableWriter(Connection c, String tableName, SimilarityMeasure[] measures, String option) throws Exception
+	{
+		this.c = c;
+		numMeasures = measures.length;
+
+		Statement stat = c.createStatement();
+		ResultSet rs = stat.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = '" + tableName + "'");
+		boolean exists = rs.next();
+		rs.close();
+		if(exists){
+			stat.close();
+			throw new IllegalStateException(tableName + " already exists - drop it or choose another table with " + option);
+		}
+
+		StringBuilder columns = new StringBuilder("Item1 INTEGER, Item2 INTEGER");
+		StringBuilder names = new StringBuilder("Item1, Item2");
+		StringBuilder parameters = new StringBuilder("?,?");
+		for(SimilarityMeasure measure : measures){
+			columns.append(", ").append(measure.name()).append(" REAL");
+			names.append(", ").append(measure.name());
+			parameters.append(",?");
+		}
+		stat.executeUpdate("CREATE TABLE " + tableName + " (" + columns + ")");
+		stat.close();
+		c.commit();
+		insert = c.prepareStatement("INSERT INTO " + tableName + " (" + names + ") VALUES (" + parameters + ")");
+	}
+
+	/*
+	 * Insert one pair - values are in the same order as the measures the table was created with
+	 */
+	public void save(int item1, int item2, double[] values) throws Exception
+	{
+		insert.setInt(1, item1);
+		insert.setInt(2, item2);
+		for(int m = 0; m < numMeasures; m++){
+			insert.setDouble(m + 3, values[m]);
+		}
+		insert.execute();
+		saved++;
+		if(saved % 750000 == 0){
+			c.commit();
+			System.out.println("Committed Data");
+		}
+	}
+
+	/*
+	 * Commit the remaining rows, the connection is left open
+	 */
+	public void close() throws Exception
+	{
+		insert.close();
+		c.commit();
+	}
+}
@@ -0,0 +1,12 @@
+/*
+ * Track-side rows of ratings in compressed sparse row form, as held by RatingMatrix and RatingBlock
+ * Ratings of row r are at positions trackStart(r) to trackEnd(r)-1, sorted by rater,
+ * 	so CoRatingSums can intersect two rows by merging whichever of the two they come from
+ */
+public interface TrackRows
+{
+	int trackStart(int row);
+	int trackEnd(int row);
+	int rater(int pos);
+	int trackRating(int pos);
+}